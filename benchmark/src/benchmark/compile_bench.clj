@@ -0,0 +1,152 @@
+(ns benchmark.compile-bench
+  "Compiled vs interpreted programs — the `datahike.query.compile` tier.
+
+   Point programs are part of prepared execution, so both modes run with
+   `execute/*prepared-execution*` on and `*fold-scalar-ins*` off, as a
+   parameterized-workload server would.
+
+   Every shape runs the SAME query shape twice on the SAME db: once with the
+   compile threshold at nil (the interpreted `run-point-program` loop) and once
+   with it at 0 (compiled on first use), and reports `ratio =
+   compiled/interpreted`. Results are compared, so a compiled program that
+   answers differently fails the run.
+
+   The two modes use different var NAMES for the same query, because the plan
+   cache keys on the form: renaming is what gives each mode its own cached
+   program without a cache-clearing hook.
+
+   Point shapes — one indexed AVET seek plus card-one same-entity merges:
+     point-3     unique email, 2 merges                    (1 row)
+     point-5     unique email, 4 merges                    (1 row)
+     fanout-3    indexed city, 2 merges                    (~N/50 rows)
+     fanout-5    indexed city, 3 merges + literal filter   (~N/100 rows)
+
+   Join shapes — orders joined to the people who placed them (N/2 orders,
+   five statuses); the interpreted side is the generic direct executor:
+     join-3      status seek, customer ref, customer name  (~N/10 rows)
+     join-4      as join-3, plus the order total           (~N/10 rows)
+     join-5      as join-4, plus the customer's city       (~N/50 rows)
+
+   Run:
+     clj -M:bench -m benchmark.compile-bench
+   Tunables (env): CB_PEOPLE (entity count, default 20000)."
+  (:require
+   [clojure.walk :as walk]
+   [datahike.api :as d]
+   [datahike.query :as q]
+   [datahike.query.compile :as qc]
+   [datahike.query.execute :as execute]
+   [benchmark.datascript-bench :as dsb]))
+
+(def schema
+  [{:db/ident :person/email :db/valueType :db.type/string :db/cardinality :db.cardinality/one :db/unique :db.unique/identity}
+   {:db/ident :person/city  :db/valueType :db.type/string :db/cardinality :db.cardinality/one :db/index true}
+   {:db/ident :person/name  :db/valueType :db.type/string :db/cardinality :db.cardinality/one}
+   {:db/ident :person/age   :db/valueType :db.type/long   :db/cardinality :db.cardinality/one}
+   {:db/ident :person/team  :db/valueType :db.type/keyword :db/cardinality :db.cardinality/one}
+   {:db/ident :person/score :db/valueType :db.type/long   :db/cardinality :db.cardinality/one}
+   {:db/ident :order/status   :db/valueType :db.type/keyword :db/cardinality :db.cardinality/one :db/index true}
+   {:db/ident :order/customer :db/valueType :db.type/ref     :db/cardinality :db.cardinality/one}
+   {:db/ident :order/total    :db/valueType :db.type/long    :db/cardinality :db.cardinality/one}])
+
+(def ^:private statuses [:open :paid :shipped :returned :closed])
+
+(defn- people-db [n]
+  (let [cfg {:store {:backend :memory :id (java.util.UUID/randomUUID)}
+             :schema-flexibility :write
+             :keep-history? false
+             :index :datahike.index/persistent-set}
+        _ (d/create-database cfg)
+        conn (d/connect cfg)]
+    (d/transact conn {:tx-data schema})
+    (doseq [batch (partition-all 5000 (range n))]
+      (d/transact conn {:tx-data (mapv (fn [i] {:person/email (str "p" i "@example.com")
+                                                :person/city (str "city-" (mod i 50))
+                                                :person/name (str "name-" i)
+                                                :person/age (mod i 90)
+                                                :person/team (if (even? i) :red :blue)
+                                                :person/score (* i 3)})
+                                       batch)}))
+    (doseq [batch (partition-all 5000 (range (quot n 2)))]
+      (d/transact conn {:tx-data (mapv (fn [i] {:order/status (nth statuses (mod i 5))
+                                                :order/customer [:person/email (str "p" (* 2 i) "@example.com")]
+                                                :order/total (* i 7)})
+                                       batch)}))
+    (d/db conn)))
+
+(defn- rename
+  "The same query with every var suffixed, so it caches as a different plan."
+  [query suffix]
+  (walk/postwalk #(if (and (symbol? %) (= \? (first (name %))))
+                     (symbol (str (name %) suffix))
+                     %)
+                 query))
+
+(defn- shapes [n]
+  [{:id :point-3
+    :query '[:find ?n ?a :in $ ?email
+             :where [?e :person/email ?email] [?e :person/name ?n] [?e :person/age ?a]]
+    :args [(str "p" (quot n 2) "@example.com")]}
+   {:id :point-5
+    :query '[:find ?n ?a ?t ?s :in $ ?email
+             :where [?e :person/email ?email] [?e :person/name ?n] [?e :person/age ?a]
+             [?e :person/team ?t] [?e :person/score ?s]]
+    :args [(str "p" (quot n 3) "@example.com")]}
+   {:id :fanout-3
+    :query '[:find ?e ?n ?a :in $ ?city
+             :where [?e :person/city ?city] [?e :person/name ?n] [?e :person/age ?a]]
+    :args ["city-7"]}
+   {:id :fanout-5
+    :query '[:find ?e ?n ?s :in $ ?city
+             :where [?e :person/city ?city] [?e :person/name ?n] [?e :person/team :red]
+             [?e :person/score ?s] [?e :person/age ?a]]
+    :args ["city-8"]}
+   {:id :join-3
+    :query '[:find ?o ?n :in $ ?status
+             :where [?o :order/status ?status] [?o :order/customer ?c] [?c :person/name ?n]]
+    :args [:paid]}
+   {:id :join-4
+    :query '[:find ?o ?n ?t :in $ ?status
+             :where [?o :order/status ?status] [?o :order/customer ?c] [?o :order/total ?t]
+             [?c :person/name ?n]]
+    :args [:paid]}
+   {:id :join-5
+    :query '[:find ?o ?n ?t :in $ ?status ?city
+             :where [?o :order/status ?status] [?o :order/customer ?c] [?o :order/total ?t]
+             [?c :person/name ?n] [?c :person/city ?city]]
+    :args [:paid "city-2"]}])
+
+(defn- measure [db {:keys [id query args]}]
+  (let [interp-q (rename query "-i")
+        comp-q (rename query "-c")
+        ;; compiled programs run on the prepared-execution path only
+        run (fn [query threshold]
+              (binding [qc/*compile-threshold* threshold
+                        execute/*prepared-execution* true
+                        q/*fold-scalar-ins* false]
+                (apply d/q query db args)))
+        interp-res (run interp-q nil)
+        comp-res (run comp-q 0)
+        interp (dsb/bench (run interp-q nil))
+        compiled (dsb/bench (run comp-q 0))]
+    {:id id :interp interp :compiled compiled
+     :ratio (/ compiled (max 1e-6 interp))
+     :n (count comp-res)
+     :status (if (= (set interp-res) (set comp-res)) :OK :WRONG)}))
+
+(defn -main [& _args]
+  (let [n (if-let [v (System/getenv "CB_PEOPLE")] (Long/parseLong v) 20000)]
+    (alter-var-root #'q/*query-result-cache?* (constantly false))
+    (binding [dsb/*warmup-t* 500 dsb/*bench-t* 500 dsb/*repeats* 5]
+      (println (format "\nCompiled programs — %d people, %d orders\n" n (quot n 2)))
+      (println (format "%-12s %12s %12s %8s %8s  %s"
+                       "shape" "interpreted" "compiled" "ratio" "rows" "status"))
+      (println (apply str (repeat 66 "-")))
+      (flush)
+      (let [db (people-db n)]
+        (doseq [shape (shapes n)]
+          (let [{:keys [id interp compiled ratio n status]} (measure db shape)]
+            (println (format "%-12s %11sms %11sms %7sx %8d  %s"
+                             (name id) (dsb/round interp) (dsb/round compiled)
+                             (dsb/round ratio) n (name status)))
+            (flush)))))))
@@ -0,0 +1,95 @@
+(ns benchmark.summary-bench
+  "Node summaries (`:node-summaries?`) — index reads saved by absent point
+   lookups.
+
+   Builds the SAME database twice on a file store, once with summaries and once
+   without, then on a freshly connected db of each (cold node cache) resolves a
+   batch of lookup refs of which a given share does not exist, and reports:
+
+     restores   node restores, cache hit or not (`pset/*restore-hook*`)
+     reads      node restores that missed the node cache and went to the store
+     ms         wall time of the batch
+
+   and `ratio = summarized/plain` for reads. Answers are compared, so a summary
+   that hides a present value fails the run.
+
+   Run:
+     clj -M:bench -m benchmark.summary-bench
+   Tunables (env): SB_PEOPLE (entity count, default 200000), SB_LOOKUPS
+   (lookups per batch, default 2000), SB_ABSENT (absent share, default 0.9)."
+  (:require
+   [datahike.api :as d]
+   [datahike.index.persistent-set :as pset]
+   [datahike.index.persistent-set.summary :as summary]))
+
+(def schema
+  [{:db/ident :person/email :db/valueType :db.type/string :db/cardinality :db.cardinality/one :db/unique :db.unique/identity}
+   {:db/ident :person/name  :db/valueType :db.type/string :db/cardinality :db.cardinality/one}])
+
+(defn- env-num [k default]
+  (if-some [v (System/getenv k)] (Double/parseDouble v) default))
+
+(defn- email [i] (str "p" (* 2 i) "@example.com"))
+
+(defn- config [summaries?]
+  (cond-> {:store {:backend :file
+                   :path (str (System/getProperty "java.io.tmpdir") "/summary-bench-" (random-uuid))
+                   :id (random-uuid)}
+           :schema-flexibility :write
+           :keep-history? false
+           :store-cache-size 64}
+    summaries? (assoc :node-summaries? true)))
+
+(defn- build! [cfg n]
+  (d/create-database cfg)
+  (let [conn (d/connect cfg)]
+    (d/transact conn {:tx-data schema})
+    (doseq [batch (partition-all 10000 (range n))]
+      (d/transact conn {:tx-data (mapv (fn [i] {:person/email (email i)
+                                                :person/name (str "name-" i)})
+                                       batch)}))
+    (d/release conn)))
+
+(defn- run [cfg refs]
+  (let [conn (d/connect cfg)
+        restores (atom 0)
+        storage (-> @conn :store :storage)
+        reads-before (:reads @(:stats storage))
+        t0 (System/nanoTime)
+        result (binding [pset/*restore-hook* #(swap! restores inc)]
+                 (mapv #(d/entid @conn %) refs))
+        ms (/ (- (System/nanoTime) t0) 1e6)]
+    (d/release conn)
+    {:result result
+     :restores @restores
+     :reads (- (:reads @(:stats storage)) reads-before)
+     :ms ms}))
+
+(defn -main [& _]
+  (let [n (long (env-num "SB_PEOPLE" 200000))
+        lookups (long (env-num "SB_LOOKUPS" 2000))
+        absent (env-num "SB_ABSENT" 0.9)
+        ;; present emails are even-numbered, so an odd one falls inside a leaf's
+        ;; key range without being in it
+        refs (vec (for [_ (range lookups)]
+                    (let [i (rand-int n)]
+                      [:person/email (if (< (rand) absent)
+                                       (str "p" (inc (* 2 i)) "@example.com")
+                                       (email i))])))
+        plain (config false)
+        summarized (config true)]
+    (build! plain n)
+    (build! summarized n)
+    (summary/clear!)
+    (let [p (run plain refs)
+          s (run summarized refs)]
+      (when-not (= (:result p) (:result s))
+        (throw (ex-info "Summarized lookups answered differently" {})))
+      (doseq [[label r] [["plain" p] ["summarized" s]]]
+        (println (format "%-11s restores %8d  reads %8d  %10.1f ms"
+                         label (:restores r) (:reads r) (:ms r))))
+      (println (format "reads ratio (summarized/plain): %.3f"
+                       (/ (double (:reads s)) (max 1 (:reads p))))))
+    (d/delete-database plain)
+    (d/delete-database summarized)
+    (shutdown-agents)))
@@ -209,6 +209,8 @@ public class Datahike extends DatahikeGenerated {
     /**
      * Pull many entities with automatic pattern string parsing.
      * Convenience method that parses the pull pattern from a string.
+     * Runs through {@code datahike.api/pull-many}, so large eid sets are
+     * pulled in parallel chunks exactly as from Clojure.
      *
      * <p>Example:</p>
      * <pre>{@code
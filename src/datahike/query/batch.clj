@@ -0,0 +1,150 @@
+(ns ^:no-doc datahike.query.batch
+  "Batch-at-a-time columns for the fused scan-only paths (JVM).
+
+   The scan-only loops take one datom at a time from the slice iterator and run
+   every filter on it as a closure call: the ground filter is an `every?` over a
+   vector of fns, the temporal tx filter another fn, the added check a boxed
+   `=`. Here the scan instead fills a batch of `batch-size` datoms at once and
+   copies the two fields those filters read into primitive columns — `e` and the
+   raw, signed `tx` (whose sign is the added flag, see `datahike.datom`). The
+   long-valued filters then run as KERNELS: one tight loop per filter over a
+   `long[]`, compacting the surviving row indices into a selection vector. Only
+   the survivors reach the per-row filters that need the datom itself (ground
+   value, strict inequalities, probe sets) and the emit.
+
+   A kernel is `[op x]`:
+
+     :e-eq       e == x
+     :tx-eq      |tx| == x         a ground tx
+     :tx-le      |tx| <= x         as-of
+     :tx-gt      |tx| >  x         since
+     :added      tx > 0            a ground `true` added
+     :retracted  tx < 0            a ground `false` added
+
+   The first kernel of a batch runs over the dense column; when the
+   `jdk.incubator.vector` module is present (the `:test` and `:bench-compare`
+   aliases add it) and `*simd?*` is true, it runs through
+   `datahike.query.batch-simd`, whole vector lanes at a time. Later kernels run
+   over the selection vector, which is gathered and so stays scalar."
+  (:require [replikativ.logging :as log])
+  (:import [datahike.datom Datom]
+           [java.util Iterator]))
+
+(set! *warn-on-reflection* true)
+
+(def ^:const batch-size
+  "Rows per batch: large enough to amortize a kernel call, small enough that
+   the columns stay in L1."
+  1024)
+
+(def ^{:dynamic true
+       :doc "Use the Vector API kernels when the module is present."}
+  *simd?* true)
+
+(deftype Batch [datoms es txs sel])
+
+(defn batch
+  "Fresh, reusable batch columns."
+  []
+  (Batch. (object-array batch-size) (long-array batch-size)
+          (long-array batch-size) (int-array batch-size)))
+
+(defn datoms
+  "The batch's datom column."
+  ^objects [^Batch b]
+  (.-datoms b))
+
+(defn selection
+  "The batch's selection vector: after `select!`, its first m entries are the
+   surviving row indices, in scan order."
+  ^ints [^Batch b]
+  (.-sel b))
+
+(defn fill!
+  "Fill `b` from `iter`, up to `batch-size` datoms. Returns how many."
+  ^long [^Batch b ^Iterator iter]
+  (let [^objects ds (.-datoms b)
+        ^longs es (.-es b)
+        ^longs txs (.-txs b)]
+    (loop [i 0]
+      (if (and (< i batch-size) (.hasNext iter))
+        (let [^Datom d (.next iter)]
+          (aset ds i d)
+          (aset es i (.-e d))
+          (aset txs i (.-tx d))
+          (recur (unchecked-inc i)))
+        i))))
+
+(defmacro ^:private defkernel
+  "A selection loop over the `m` rows in `sel`, keeping those whose column value
+   `v` passes `test` (which may also read the kernel argument `x`). Survivors
+   are compacted to the front of `sel`; returns how many."
+  [name test]
+  ;; the arg vector is built outside the syntax quote, which would otherwise
+  ;; qualify the `long` return tag
+  `(defn- ~name ~(with-meta '[^longs col ^long x ^ints sel ^long m] {:tag 'long})
+     (loop [j# 0 k# 0]
+       (if (< j# ~'m)
+         (let [i# (aget ~'sel j#)
+               ~'v (aget ~'col i#)]
+           (if ~test
+             (do (aset ~'sel k# i#)
+                 (recur (unchecked-inc j#) (unchecked-inc k#)))
+             (recur (unchecked-inc j#) k#)))
+         k#))))
+
+(defkernel select-e-eq (== v x))
+(defkernel select-tx-eq (== (Math/abs v) x))
+(defkernel select-tx-le (<= (Math/abs v) x))
+(defkernel select-tx-gt (> (Math/abs v) x))
+(defkernel select-added (pos? v))
+(defkernel select-retracted (neg? v))
+
+(defn- column ^longs [^Batch b op]
+  (if (identical? op :e-eq) (.-es b) (.-txs b)))
+
+(defn- run-kernel [^Batch b op x m]
+  (let [col (column b op)
+        sel (.-sel b)]
+    (case op
+      :e-eq (select-e-eq col x sel m)
+      :tx-eq (select-tx-eq col x sel m)
+      :tx-le (select-tx-le col x sel m)
+      :tx-gt (select-tx-gt col x sel m)
+      :added (select-added col x sel m)
+      :retracted (select-retracted col x sel m))))
+
+(def ^:private simd-select
+  "`datahike.query.batch-simd/select-dense`, or nil without the module."
+  (delay
+    (try
+      (Class/forName "jdk.incubator.vector.LongVector")
+      (requiring-resolve 'datahike.query.batch-simd/select-dense)
+      (catch Throwable e
+        (log/debug :datahike/batch-simd-unavailable {:message (ex-message e)})
+        nil))))
+
+(defn simd-available?
+  "True when the Vector API kernels are loaded."
+  []
+  (some? @simd-select))
+
+(defn select!
+  "Run `kernels` over the first `n` rows of `b`, leaving the surviving row
+   indices at the front of its selection vector. Returns how many survive."
+  [^Batch b kernels n]
+  (let [^ints sel (.-sel b)
+        n (long n)]
+    (if-let [[[op x] & more] (seq kernels)]
+      (let [simd (when *simd?* @simd-select)
+            m (if simd
+                (simd op (column b op) x sel n)
+                (do (dotimes [i n] (aset sel i (int i)))
+                    (run-kernel b op x n)))]
+        (reduce (fn [m [op x]]
+                  (if (zero? (long m))
+                    (reduced 0)
+                    (run-kernel b op x m)))
+                m more))
+      (do (dotimes [i n] (aset sel i (int i)))
+          n))))
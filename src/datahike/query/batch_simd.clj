@@ -0,0 +1,83 @@
+(ns ^:no-doc datahike.query.batch-simd
+  "Vector API kernels for `datahike.query.batch`. Loaded only through
+   `batch/simd-select`, once `jdk.incubator.vector` has been found on the
+   module path: the imports below fail to load without it, so nothing else may
+   refer to this namespace.
+
+   A dense kernel compares whole `LongVector`s of the column against the
+   argument, and only a mask with a set lane is walked to append row indices to
+   the selection vector — for a selective filter most vectors are rejected in
+   one compare. The tail past the last full vector runs lane by lane."
+  (:import [jdk.incubator.vector LongVector VectorOperators VectorSpecies]))
+
+(set! *warn-on-reflection* true)
+
+(def ^:private ^VectorSpecies species LongVector/SPECIES_PREFERRED)
+
+(defmacro ^:private defdense
+  "A dense selection loop over rows 0..n-1 of `col`. `mask` is the lane mask for
+   the LongVector `v`; `test` the same condition on one long `v`. Both may read
+   the kernel argument `x`."
+  [name mask test]
+  `(defn- ~name ~(with-meta '[^longs col ^long x ^ints sel ^long n] {:tag 'long})
+     (let [step# (long (.length species))
+           bound# (long (.loopBound species (int ~'n)))
+           k# (long (loop [i# 0 k# 0]
+                      (if (< i# bound#)
+                        (let [~'v (LongVector/fromArray species ~'col (int i#))
+                              mask# ~mask]
+                          (if (.anyTrue mask#)
+                            (recur (+ i# step#)
+                                   (long (loop [l# 0 k# k#]
+                                           (if (< l# step#)
+                                             (if (.laneIsSet mask# (int l#))
+                                               (do (aset ~'sel k# (int (+ i# l#)))
+                                                   (recur (unchecked-inc l#) (unchecked-inc k#)))
+                                               (recur (unchecked-inc l#) k#))
+                                             k#))))
+                            (recur (+ i# step#) k#)))
+                        k#)))]
+       (loop [i# bound# k# k#]
+         (if (< i# ~'n)
+           (let [~'v (aget ~'col i#)]
+             (if ~test
+               (do (aset ~'sel k# (int i#))
+                   (recur (unchecked-inc i#) (unchecked-inc k#)))
+               (recur (unchecked-inc i#) k#)))
+           k#)))))
+
+(defdense dense-e-eq
+  (.compare v VectorOperators/EQ x)
+  (== v x))
+
+(defdense dense-tx-eq
+  (.compare (.abs v) VectorOperators/EQ x)
+  (== (Math/abs v) x))
+
+(defdense dense-tx-le
+  (.compare (.abs v) VectorOperators/LE x)
+  (<= (Math/abs v) x))
+
+(defdense dense-tx-gt
+  (.compare (.abs v) VectorOperators/GT x)
+  (> (Math/abs v) x))
+
+(defdense dense-added
+  (.compare v VectorOperators/GT 0)
+  (pos? v))
+
+(defdense dense-retracted
+  (.compare v VectorOperators/LT 0)
+  (neg? v))
+
+(defn select-dense
+  "Kernel `op` over rows 0..n-1 of `col`, writing survivors to `sel`. Returns
+   how many."
+  [op col x sel n]
+  (case op
+    :e-eq (dense-e-eq col x sel n)
+    :tx-eq (dense-tx-eq col x sel n)
+    :tx-le (dense-tx-le col x sel n)
+    :tx-gt (dense-tx-gt col x sel n)
+    :added (dense-added col x sel n)
+    :retracted (dense-retracted col x sel n)))
@@ -0,0 +1,399 @@
+(ns ^:no-doc datahike.query.compile
+  "The compiled tier for prepared programs: a program from
+   `execute/compile-point-program` or `execute/compile-join-program` turned
+   into a specialized, type-hinted fn.
+
+   A point program is already the prepared form of its plan — value-free, with
+   every per-call decision taken once — but `run-point-program` still
+   INTERPRETS it: for every scanned entity it walks the merge vector, destructures
+   each spec, dispatches on `:mode` with `case`, threads the bindings through a
+   persistent map, and reaches each merge datom through a one-element
+   `di/-slice` seq. None of that depends on the data. Here the same program is
+   emitted as code instead: one nested `let` per merge, unrolled in program
+   order, its mode resolved at generation time; bindings in locals; a merge as a
+   single `lookupGE` with the entity and attribute checked inline (`==` on the
+   primitive entity id, `identical?` on the interned attribute keyword); a
+   literal compared with `=` unless it is a value array, which is the only case
+   `a=` exists for. The result is `eval`ed once and cached on the program.
+
+   Compilation is not free — `eval` costs about a millisecond and a class — so a
+   program is only compiled once it is HOT: after `*compile-threshold*` runs of
+   the same plan under the same find-vars and const keyset. One-off ad-hoc
+   queries never pay it; the fixed-shape queries of a service pay it once.
+
+   Scope:
+   - point programs: one indexed AVET seek plus card-one same-entity merges —
+     `[?e :email ?x] [?e :name ?n] [?e :age ?a]`;
+   - join programs (`execute/compile-join-program`): several such groups,
+     each with any scan, joined on shared vars — `[?o :order/status :open]
+     [?o :order/customer ?c] [?c :customer/name ?n]`. The groups become
+     nested loops, which replaces the interpreted probe sets, probe maps and
+     tuple recombination.
+   Plans with predicates, functions, negation or card-many merges stay on the
+   interpreted operators; see `benchmark.compile-bench` for where the tier
+   pays."
+  (:require [datahike.array :as da]
+            [replikativ.logging :as log])
+  (:import [java.util.concurrent.atomic AtomicLong]))
+
+(set! *warn-on-reflection* true)
+
+(def ^{:dynamic true
+       :doc "Runs of one point program before it is compiled, or nil to never
+             compile. Read when a program is cached; 0 compiles on first use."}
+  *compile-threshold* 32)
+
+(defn- local-sym
+  "A readable local for a query var: `?name` -> `v-name-123`."
+  [var]
+  (gensym (str "v-" (subs (name var) 1) "-")))
+
+(defn- tagged [sym tag]
+  (with-meta sym {:tag tag}))
+
+(defn- value-test
+  "Inline equality of the datom value in `v-sym` against the value in
+   `expected-sym`. `literal` is the value itself when it is known at generation
+   time, which is what lets the non-array case compile to a plain `=`."
+  ([v-sym expected-sym] `(da/a= ~v-sym ~expected-sym))
+  ([v-sym expected-sym literal]
+   (if (da/value-array? literal)
+     `(da/a= ~v-sym ~expected-sym)
+     `(= ~expected-sym ~v-sym))))
+
+(defn- merge-form
+  "The code for merges `i..`, with `bound` mapping each var bound so far to its
+   local, ending in `(emit bound)`. `lit` turns a literal into the symbol it is
+   closed over as, so no value is ever embedded in the generated code."
+  [merges i bound e-sym eavt-sym lit emit]
+  (if (>= i (count merges))
+    (emit bound)
+    (let [{:keys [attr mode var val default]} (nth merges i)
+          d (tagged (gensym "md-") 'datahike.datom.Datom)
+          v (gensym "mv-")
+          attr-sym (lit attr)
+          continue (fn [bound'] (merge-form merges (inc i) bound' e-sym eavt-sym lit emit))
+          present `(and (some? ~d)
+                        (== (.-e ~d) ~e-sym)
+                        (identical? (.-a ~d) ~attr-sym))
+          bind-or-check (fn [v-expr]
+                          (if-let [prev (get bound var)]
+                            `(let [~v ~v-expr]
+                               (when ~(value-test v prev)
+                                 ~(continue bound)))
+                            (let [local (local-sym var)]
+                              `(let [~local ~v-expr]
+                                 ~(continue (assoc bound var local))))))]
+      `(let [~d (.lookupGE ~eavt-sym (datahike.datom/datom ~e-sym ~attr-sym nil datahike.constants/tx0))]
+         ~(case mode
+            :lit `(when ~present
+                    (let [~v (.-v ~d)]
+                      (when ~(value-test v (lit val) val)
+                        ~(continue bound))))
+            :cval `(when ~present
+                     (let [~v (.-v ~d)]
+                       (when ~(value-test v (get bound var))
+                         ~(continue bound))))
+            :bind `(when ~present
+                     ~(bind-or-check `(.-v ~d)))
+            :optional (bind-or-check `(if ~present (.-v ~d) ~(lit default))))))))
+
+(defn program-form
+  "The generated code for `prog`, and the literals it closes over:
+   `[form literals]`, where `form` evaluates to
+   `(fn [literals] (fn [db consts max-results cancel result-list] …))`.
+
+   The inner fn fills `result-list` exactly as `run-point-program`'s interpreted
+   loop does — same rows, same order — and leaves attached predicates and the
+   final dedup to the caller, which shares them with the interpreted path."
+  [{:keys [se sa sv-src merges emit-vars]}]
+  (let [literals (atom [])
+        lit-syms (atom {})
+        lit (fn [x]
+              (let [i (count @literals)
+                    sym (gensym (str "lit" i "-"))]
+                (swap! literals conj x)
+                (swap! lit-syms assoc sym i)
+                sym))
+        [src x] sv-src
+        bind-vars (into #{se} (keep #(when (#{:bind :optional} (:mode %)) (:var %))) merges)
+        cval-vars (into [] (comp (filter #(= :cval (:mode %))) (map :var) (distinct)) merges)
+        const-vars (distinct (concat cval-vars (remove bind-vars emit-vars)))
+        const-locals (into {} (map (fn [v] [v (local-sym v)])) const-vars)
+        e-sym (gensym "e-")
+        eavt-sym (tagged (gensym "eavt-") 'org.replikativ.persistent_sorted_set.PersistentSortedSet)
+        d-sym (tagged (gensym "d-") 'datahike.datom.Datom)
+        out-sym (tagged (gensym "out-") 'java.util.ArrayList)
+        ds (gensym "ds-")
+        emitted (gensym "emitted-")
+        max-n (gensym "max-n-")
+        sv (gensym "sv-")
+        cancel-sym (tagged (gensym "cancel-") 'clojure.lang.IDeref)
+        sa-sym (lit sa)
+        sv-expr (if (= :lit src) (lit x) `(get ~'consts '~x))
+        emit (fn [bound]
+               (let [bound (merge const-locals bound {se e-sym})
+                     row (tagged (gensym "row-") 'objects)]
+                 `(let [~row (object-array ~(count emit-vars))]
+                    ~@(map-indexed (fn [i v] `(aset ~row ~i ~(get bound v))) emit-vars)
+                    (.add ~out-sym ~row)
+                    true)))
+        body (merge-form merges 0 (assoc const-locals se e-sym) e-sym eavt-sym lit emit)
+        lits-sym (gensym "literals-")
+        form `(fn [~lits-sym]
+                (let [~@(mapcat (fn [[sym i]] [sym `(nth ~lits-sym ~i)]) @lit-syms)]
+                  (fn [~'db ~'consts ~'max-results ~'cancel ~out-sym]
+                    (let [~sv ~sv-expr
+                          ~@(mapcat (fn [[v l]] [l `(get ~'consts '~v)]) const-locals)]
+                      (when (and (some? ~sv) ~@(map (fn [v] `(some? ~(const-locals v))) cval-vars))
+                        (let [~eavt-sym (:eavt ~'db)
+                              ~max-n (if ~'max-results (long ~'max-results) Long/MAX_VALUE)]
+                          (loop [~ds (seq (datahike.index.interface/-slice
+                                           (:avet ~'db)
+                                           (datahike.datom/datom datahike.constants/e0 ~sa-sym ~sv datahike.constants/tx0)
+                                           (datahike.datom/datom datahike.constants/emax ~sa-sym ~sv datahike.constants/txmax)
+                                           :avet))
+                                 ~emitted 0]
+                            (when (and ~ds (< ~emitted ~max-n))
+                              (when-let [~cancel-sym ~'cancel]
+                                (when (.deref ~cancel-sym)
+                                  (throw (ex-info "query canceled" {:datahike/canceled true}))))
+                              (let [~d-sym (first ~ds)
+                                    ~e-sym (.-e ~d-sym)]
+                                (recur (next ~ds)
+                                       (if ~body
+                                         (unchecked-inc ~emitted)
+                                         ~emitted)))))))))))]
+    [form @literals]))
+
+;; ---------------------------------------------------------------------------
+;; Join programs
+;;
+;; A join program is a plan of several entity groups, each a scan plus card-one
+;; same-entity merges, joined on the vars they share. The interpreted executor
+;; runs each group to a result list, builds probe sets and maps between them
+;; and recombines tuples through a per-row combination plan. Here the groups
+;; become nested loops in plan order, the vars bound so far in locals, so a
+;; joined row is never built until it is emitted. Each group is reached the
+;; cheapest way its bound vars allow, as `execute/compile-join-program`
+;; decided:
+;;
+;; - `:lookup` — its entity is bound: the scan pattern is one more merge on
+;;   that entity (or an EAVT range for a card-many attribute).
+;; - `:seek`   — its value is bound or a literal on an indexed attribute: one
+;;   AVET range per outer row.
+;; - `:scan`   — the first group, with nothing bound: one AEVT range.
+;; - `:probe`  — none of those: the group is scanned once up front into a
+;;   HashMap on the var it shares with the groups before it, and each outer
+;;   row probes it.
+
+(defn- check-or-bind
+  "Bind `var` to the value of `v-expr`, or when `bound` already has it, go on
+   only if the two are equal."
+  [v-expr var bound continue]
+  (let [v (gensym "v-")]
+    (if-let [prev (get bound var)]
+      `(let [~v ~v-expr]
+         (when ~(value-test v prev)
+           ~(continue bound)))
+      (let [local (local-sym var)]
+        `(let [~local ~v-expr]
+           ~(continue (assoc bound var local)))))))
+
+(defn- value-form
+  "Match the datom value in `v-sym` against the scan's value position `sv`:
+   `[:lit x]` or `[:var v]`."
+  [v-sym [k x] bound lit continue]
+  (case k
+    :lit `(when ~(value-test v-sym (lit x) x)
+            ~(continue bound))
+    :var (check-or-bind v-sym x bound continue)))
+
+(defn- range-loop
+  "Loop over the datoms of `index` from `from` to `to`, running `body-fn` on
+   the symbol each datom is bound to."
+  [index-sym index-kw from to cancel-sym body-fn]
+  (let [ds (gensym "ds-")
+        d (tagged (gensym "d-") 'datahike.datom.Datom)]
+    `(loop [~ds (seq (datahike.index.interface/-slice ~index-sym ~from ~to ~index-kw))]
+       (when ~ds
+         (when-let [c# ~cancel-sym]
+           (when (.deref ^clojure.lang.IDeref c#)
+             (throw (ex-info "query canceled" {:datahike/canceled true}))))
+         (let [~d (first ~ds)]
+           ~(body-fn d))
+         (recur (next ~ds))))))
+
+(defn- group-form
+  "The code for group `g` inside the groups before it, whose vars are in
+   `bound`; `continue` gets the bindings once a row of `g` has matched."
+  [{:keys [access se sa sv card-one? merges vars key-var] :as g} bound
+   {:keys [eavt avet aevt cancel lit table]} continue]
+  (let [attr (lit sa)
+        e-sym (gensym "e-")
+        then-merges (fn [bound] (merge-form merges 0 bound e-sym eavt lit continue))]
+    (case access
+      :lookup
+      (let [x (gensym "x-")
+            [k sx] sv
+            head {:attr sa :mode (if (= :lit k) :lit :bind) :var sx :val sx}]
+        `(let [~x ~(get bound se)]
+           (when (number? ~x)
+             (let [~e-sym (long ~x)]
+               ~(if card-one?
+                  (merge-form (into [head] merges) 0 bound e-sym eavt lit continue)
+                  (range-loop eavt :eavt
+                              `(datahike.datom/datom ~e-sym ~attr nil datahike.constants/tx0)
+                              `(datahike.datom/datom ~e-sym ~attr nil datahike.constants/txmax)
+                              cancel
+                              (fn [d]
+                                (let [v (gensym "v-")]
+                                  `(let [~v (.-v ~d)]
+                                     ~(value-form v sv bound lit then-merges))))))))))
+
+      :seek
+      (let [[k x] sv
+            value (if (= :lit k) (lit x) (get bound x))]
+        (range-loop avet :avet
+                    `(datahike.datom/datom datahike.constants/e0 ~attr ~value datahike.constants/tx0)
+                    `(datahike.datom/datom datahike.constants/emax ~attr ~value datahike.constants/txmax)
+                    cancel
+                    (fn [d]
+                      `(let [~e-sym (.-e ~d)]
+                         ~(then-merges (assoc bound se e-sym))))))
+
+      :scan
+      (range-loop aevt :aevt
+                  `(datahike.datom/datom datahike.constants/e0 ~attr nil datahike.constants/tx0)
+                  `(datahike.datom/datom datahike.constants/emax ~attr nil datahike.constants/txmax)
+                  cancel
+                  (fn [d]
+                    (let [v (gensym "v-")]
+                      `(let [~e-sym (.-e ~d)
+                             ~v (.-v ~d)]
+                         ~(value-form v sv (assoc bound se e-sym) lit then-merges)))))
+
+      :probe
+      (let [rows (tagged (gensym "rows-") 'java.util.ArrayList)
+            row (tagged (gensym "row-") 'objects)
+            j (gensym "j-")]
+        `(when-let [~rows (.get ~(table g) (da/native-key ~(get bound key-var)))]
+           (let [n# (.size ~rows)]
+             (loop [~j 0]
+               (when (< ~j n#)
+                 (let [~row (.get ~rows ~j)]
+                   ~((fn step [i bound]
+                       (if (>= i (count vars))
+                         (continue bound)
+                         (check-or-bind `(aget ~row ~i) (nth vars i) bound
+                                        #(step (inc i) %))))
+                     0 bound))
+                 (recur (unchecked-inc ~j))))))))))
+
+(defn- table-form
+  "The code that scans probe group `g` on its own, with only the consts
+   bound, into a HashMap from its key var to rows of its `:vars`."
+  [{:keys [vars key-var] :as g} const-locals ctx]
+  (let [tbl (tagged (gensym "tbl-") 'java.util.HashMap)
+        standalone (assoc g :access (if (:seekable? g) :seek :scan))]
+    `(let [~tbl (java.util.HashMap.)]
+       ~(group-form standalone const-locals ctx
+                    (fn [bound]
+                      (let [row (tagged (gensym "row-") 'objects)
+                            k (gensym "k-")
+                            l (tagged (gensym "l-") 'java.util.ArrayList)]
+                        `(let [~row (object-array ~(count vars))
+                               ~k (da/native-key ~(get bound key-var))]
+                           ~@(map-indexed (fn [i v] `(aset ~row ~i ~(get bound v))) vars)
+                           (if-let [~l (.get ~tbl ~k)]
+                             (.add ~l ~row)
+                             (.put ~tbl ~k (doto (java.util.ArrayList.) (.add ~row))))))))
+       ~tbl)))
+
+(defn join-program-form
+  "The generated code for join program `prog`, and the literals it closes
+   over: `[form literals]`, where `form` evaluates to
+   `(fn [literals] (fn [db consts cancel result-list] …))`.
+
+   The inner fn adds one `find-vars` row to `result-list` per joined match,
+   duplicates included, and leaves the dedup to the caller."
+  [{:keys [groups const-vars pattern-consts find-vars]}]
+  (let [literals (atom [])
+        lit-syms (atom {})
+        lit (fn [x]
+              (let [i (count @literals)
+                    sym (gensym (str "lit" i "-"))]
+                (swap! literals conj x)
+                (swap! lit-syms assoc sym i)
+                sym))
+        const-locals (into {} (map (fn [v] [v (local-sym v)])) const-vars)
+        tables (into {} (keep-indexed (fn [i g] (when (= :probe (:access g))
+                                                   [i (tagged (gensym (str "table" i "-"))
+                                                              'java.util.HashMap)])))
+                     groups)
+        groups (into [] (map-indexed (fn [i g] (assoc g ::idx i))) groups)
+        out-sym (tagged (gensym "out-") 'java.util.ArrayList)
+        ctx {:eavt (tagged (gensym "eavt-") 'org.replikativ.persistent_sorted_set.PersistentSortedSet)
+             :avet (gensym "avet-")
+             :aevt (gensym "aevt-")
+             :cancel (gensym "cancel-")
+             :lit lit
+             :table #(get tables (::idx %))}
+        emit (fn [bound]
+               (let [row (tagged (gensym "row-") 'objects)]
+                 `(let [~row (object-array ~(count find-vars))]
+                    ~@(map-indexed (fn [i v] `(aset ~row ~i ~(get bound v))) find-vars)
+                    (.add ~out-sym ~row))))
+        body ((fn step [i bound]
+                (if (>= i (count groups))
+                  (emit bound)
+                  (group-form (nth groups i) bound ctx #(step (inc i) %))))
+              0 const-locals)
+        table-bindings (mapcat (fn [[i sym]] [sym (table-form (nth groups i) const-locals ctx)])
+                               tables)
+        lits-sym (gensym "literals-")
+        form `(fn [~lits-sym]
+                (let [~@(mapcat (fn [[sym i]] [sym `(nth ~lits-sym ~i)]) @lit-syms)]
+                  (fn [~'db ~'consts ~(:cancel ctx) ~out-sym]
+                    (let [~@(mapcat (fn [[v l]] [l `(get ~'consts '~v)]) const-locals)]
+                      (when (and ~@(map (fn [v] `(some? ~(const-locals v))) pattern-consts))
+                        (let [~(:eavt ctx) (:eavt ~'db)
+                              ~(:avet ctx) (:avet ~'db)
+                              ~(:aevt ctx) (:aevt ~'db)
+                              ~@table-bindings]
+                          ~body))))))]
+    [form @literals]))
+
+(defn compile-program
+  "`prog`'s compiled fn, or nil if generating or evaluating it failed — in which
+   case the interpreted path keeps serving it, which is always correct."
+  [prog]
+  (try
+    (let [[form literals] (if (= :join (:kind prog))
+                            (join-program-form prog)
+                            (program-form prog))]
+      (binding [*ns* (the-ns 'datahike.query.compile)]
+        ((eval form) literals)))
+    (catch Exception e
+      (log/warn :datahike/query-compile-failed {:message (ex-message e)})
+      nil)))
+
+(defn counter
+  "The run counter a cached program carries, or nil when compilation is off."
+  []
+  (when *compile-threshold* (AtomicLong. 0)))
+
+(defn promote
+  "Count one run of `prog`, the entry cached under `k` in `cache`; on the run
+   that reaches the threshold, compile it and cache the compiled form. Returns
+   the program to run now."
+  [cache k prog]
+  (let [^AtomicLong calls (::calls prog)]
+    (if (or (nil? calls) (:compiled prog) (::failed prog))
+      prog
+      (if (>= (.incrementAndGet calls) (long (or *compile-threshold* 0)))
+        (let [f (compile-program prog)
+              prog' (if f (assoc prog :compiled f) (assoc prog ::failed true))]
+          (swap! cache assoc k prog')
+          prog')
+        prog))))
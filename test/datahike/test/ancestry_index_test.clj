@@ -0,0 +1,96 @@
+(ns datahike.test.ancestry-index-test
+  "The ancestry index over the commit graph (`datahike.commit-graph`).
+
+   Covers:
+   - Entries: depth, generation, the parent at skip level 0
+   - The ancestor at a depth, the commits between two, the commit at a time
+   - The merge base from the index, and the fallback once a merge is in the way"
+  (:require [clojure.test :refer [deftest is testing]]
+            [datahike.api :as d]
+            [datahike.commit-graph :as cg]
+            [datahike.versioning :as v]))
+
+(def ^:private opts {:sync? true})
+
+(defn- with-conn [f]
+  (let [cfg {:store {:backend :memory :id (random-uuid)}
+             :schema-flexibility :read
+             :keep-history? false}]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)]
+      (try (f conn cfg)
+           (finally (d/release conn)
+                    (d/delete-database cfg))))))
+
+(defn- ancestry [db]
+  (get-in db [:meta :datahike/ancestry]))
+
+(defn- commits
+  "Transacts `n` times; the cids of the connection's commits by depth, the
+   first commit included."
+  [conn n]
+  (into [(v/commit-id @conn)]
+        (for [i (range n)]
+          (do (Thread/sleep 2)
+              (d/transact conn [{:n i}])
+              (v/commit-id @conn)))))
+
+(deftest entries
+  (with-conn
+    (fn [conn _]
+      (let [root (ancestry @conn)
+            cids (commits conn 3)
+            e (ancestry @conn)]
+        (is (= 0 (:depth root) (:gen root)))
+        (is (empty? (:skip root)))
+        (is (= 3 (:depth e) (:gen e)))
+        (is (= (nth cids 2) (first (first (:skip e)))))
+        (is (nil? (:merge-depth e)))))))
+
+(deftest first-parent-queries
+  (with-conn
+    (fn [conn _]
+      (let [cids (commits conn 100)
+            store (:store @conn)
+            head (peek cids)]
+        (testing "the ancestor at a depth"
+          (doseq [i [0 1 37 64 99 100]]
+            (is (= (nth cids i) (cg/ancestor-at-depth store head i opts))))
+          (is (= (nth cids 50) (cg/ancestor-at-depth store :db 50 opts)))
+          (is (nil? (cg/ancestor-at-depth store (nth cids 10) 20 opts))))
+        (testing "the commits between two"
+          (is (= (reverse (subvec cids 11 21))
+                 (v/commits-between conn (nth cids 10) (nth cids 20))))
+          (is (= [head] (v/commits-between conn (nth cids 99) :db)))
+          (is (thrown-with-msg? Exception #"Not a first-parent ancestor"
+                                (v/commits-between conn (nth cids 20) (nth cids 10)))))
+        (testing "the commit at a time"
+          (doseq [i [0 1 42 99 100]]
+            (let [t (:time (cg/lookup store (nth cids i) opts))]
+              (is (= (nth cids i) (v/commit-at-time conn :db t)))))
+          (is (nil? (v/commit-at-time conn :db (dec (long (:time (cg/lookup store (first cids) opts))))))))))))
+
+(deftest merge-base-from-the-index
+  (with-conn
+    (fn [conn cfg]
+      (d/transact conn [{:n 0}])
+      (v/branch! conn :db :feature)
+      (let [store (:store @conn)
+            feature (d/connect (assoc cfg :branch :feature))
+            base (v/commit-id @conn)]
+        (try
+          (commits conn 20)
+          (commits feature 7)
+          (testing "answered by the index"
+            (is (= base (cg/merge-base store (v/commit-id @conn) (v/commit-id @feature) opts)))
+            (is (= base (v/merge-base store (v/commit-id @conn) (v/commit-id @feature)))))
+          (testing "a merge commit sends it to the walk"
+            (let [merged (v/commit-id @feature)
+                  {:keys [db-after]} (v/merge-branches! conn :feature)
+                  e (ancestry db-after)]
+              (is (= (:depth e) (:merge-depth e)))
+              (is (< (:gen (cg/lookup store merged opts)) (:gen e)))
+              (commits feature 3)
+              (is (nil? (cg/merge-base store (v/commit-id @conn) (v/commit-id @feature) opts)))
+              (is (= merged (v/merge-base store (v/commit-id @conn) (v/commit-id @feature))))))
+          (finally (d/release feature)))))))
@@ -0,0 +1,93 @@
+(ns datahike.test.durability-test
+  "Per-transaction `:durability`.
+
+   Covers:
+   - `:applied` is visible at once and committed with the next batch
+   - Mixed levels keep the connection moving forward
+   - Commits behind an `:applied` run still chain onto each other
+   - `:synced` checkpoints its batch under `:wal`
+   - An unknown level is rejected"
+  (:require [clojure.test :refer [deftest is testing]]
+            [datahike.api :as d]
+            [konserve.core :as k]))
+
+(defn- config [extra]
+  (merge {:store {:backend :memory :id (random-uuid)}
+          :schema-flexibility :read
+          :keep-history? false}
+         extra))
+
+(defn- ns-of [db]
+  (set (d/q '[:find [?n ...] :where [_ :n ?n]] db)))
+
+(defn- stored-head [conn]
+  (let [db @conn]
+    (k/get (:store db) (get-in db [:config :branch]) nil {:sync? true})))
+
+(deftest applied-then-committed
+  (let [cfg (config {})]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)]
+      (testing "visible on the connection when transact returns"
+        (let [report (d/transact conn {:tx-data [{:n 1}] :durability :applied})]
+          (is (nil? (get-in report [:tx-meta :db/commitId])))
+          (is (= #{1} (ns-of @conn)))))
+      (testing "mixed levels"
+        (d/transact conn {:tx-data [{:n 2}] :durability :applied})
+        (let [report (d/transact conn {:tx-data [{:n 3}]})]
+          (is (some? (get-in report [:tx-meta :db/commitId]))))
+        (is (= #{1 2 3} (ns-of @conn))))
+      (d/release conn))
+    (testing "committed"
+      (let [conn (d/connect cfg)]
+        (is (= #{1 2 3} (ns-of @conn)))
+        (d/release conn)))
+    (d/delete-database cfg)))
+
+(defn- first-parents
+  "The commit ids from `cid` back along first parents."
+  [store cid]
+  (loop [cid cid
+         acc #{}]
+    (if-let [record (when (and cid (not (contains? acc cid)))
+                      (k/get store cid nil {:sync? true}))]
+      (recur (first (get-in record [:meta :datahike/parents])) (conj acc cid))
+      acc)))
+
+(deftest applied-runs-keep-the-commit-chain
+  (let [cfg (config {})]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)
+          cids (vec (for [i (range 30)]
+                      (do (d/transact conn {:tx-data [{:n (* 2 i)}] :durability :applied})
+                          (get-in (d/transact conn [{:n (inc (* 2 i))}])
+                                  [:tx-meta :db/commitId]))))
+          head (get-in (stored-head conn) [:meta :datahike/commit-id])]
+      (testing "every reported commit is an ancestor of the head"
+        (is (every? (first-parents (:store @conn) head) cids)))
+      (testing "the connection names no commit but the head"
+        (is (contains? #{nil head} (get-in @conn [:meta :datahike/commit-id]))))
+      (d/release conn))
+    (d/delete-database cfg)))
+
+(deftest synced-checkpoints-under-wal
+  (let [cfg (config {:wal {:checkpoint-txs 1000 :checkpoint-ms 600000}})]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)]
+      (d/transact conn [{:n 1}])
+      (is (nil? (get-in (stored-head conn) [:meta :datahike/wal-checkpoint])))
+      (let [report (d/transact conn {:tx-data [{:n 2}] :durability :synced})]
+        (is (some? (get-in report [:tx-meta :db/commitId]))))
+      ;; covers record 1; the synced batch itself was never logged
+      (is (= 1 (get-in (stored-head conn) [:meta :datahike/wal-checkpoint])))
+      (d/release conn))
+    (d/delete-database cfg)))
+
+(deftest unknown-durability
+  (let [cfg (config {})]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)]
+      (is (thrown-with-msg? Exception #"Bad :durability"
+                            (d/transact conn {:tx-data [{:n 1}] :durability :eventually})))
+      (d/release conn))
+    (d/delete-database cfg)))
@@ -0,0 +1,88 @@
+(ns datahike.test.entity-cache-test
+  "The snapshot-shared entity attribute cache (`:entity-cache-bytes`).
+
+   Covers:
+   - Entities read through the cache equal entities read without it: values,
+     cardinality-many sets, refs, reverse refs and touched components
+   - A second entity over the same snapshot hits instead of reading EAVT
+   - A new snapshot misses; temporal views bypass the cache
+   - The byte budget evicts"
+  (:require [clojure.test :refer [deftest is testing use-fixtures]]
+            [datahike.api :as d]
+            [datahike.impl.entity-cache :as ec]))
+
+(def ^:private schema
+  [{:db/ident :name :db/valueType :db.type/string :db/cardinality :db.cardinality/one}
+   {:db/ident :tag :db/valueType :db.type/keyword :db/cardinality :db.cardinality/many}
+   {:db/ident :friend :db/valueType :db.type/ref :db/cardinality :db.cardinality/many}
+   {:db/ident :address :db/valueType :db.type/ref :db/cardinality :db.cardinality/one
+    :db/isComponent true}
+   {:db/ident :street :db/valueType :db.type/string :db/cardinality :db.cardinality/one}])
+
+(defn- conn-with [extra-cfg]
+  (let [cfg (merge {:store {:backend :memory :id (random-uuid)}
+                    :schema-flexibility :write
+                    :keep-history? true}
+                   extra-cfg)]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)]
+      (d/transact conn schema)
+      (d/transact conn (vec (for [i (range 50)]
+                              (cond-> {:db/id (str "p" i)
+                                       :name (str "person " i)
+                                       :tag [:all (keyword (str "t" (mod i 3)))]
+                                       :address {:street (str "street " i)}}
+                                (pos? i) (assoc :friend [(str "p" (dec i))])))))
+      conn)))
+
+(use-fixtures :each (fn [f] (ec/clear!) (f)))
+
+(defn- people [db]
+  (sort (map first (d/q '[:find ?e :where [?e :name _]] db))))
+
+(defn- view
+  "An entity as plain data: touched, refs as eids."
+  [e]
+  (-> (into {} (d/touch e))
+      (update :friend #(set (map :db/id %)))
+      (update :address #(into {} %))
+      (assoc :friend-of (set (map :db/id (:_friend e))))))
+
+(deftest cached-entities-agree
+  (let [plain @(conn-with {})
+        cached @(conn-with {:entity-cache-bytes 1000000})]
+    (is (= (map #(view (d/entity plain %)) (people plain))
+           (map #(view (d/entity cached %)) (people cached))))
+    (testing "single attribute reads"
+      (let [e (first (people cached))]
+        (is (= (:name (d/entity plain e)) (:name (d/entity cached e))))
+        (is (= (:tag (d/entity plain e)) (:tag (d/entity cached e))))
+        (is (nil? (:missing (d/entity cached e))))))))
+
+(deftest same-snapshot-hits
+  (let [conn (conn-with {:entity-cache-bytes 1000000})
+        db @conn
+        e (first (people db))]
+    (:name (d/entity db e))
+    (let [{:keys [hits misses]} (ec/stats)]
+      (:tag (d/entity db e))
+      (d/touch (d/entity db e))
+      (is (= misses (:misses (ec/stats))) "read from EAVT once")
+      (is (= (+ 2 hits) (:hits (ec/stats)))))
+    (testing "a new snapshot misses"
+      (d/transact conn [{:db/id e :name "renamed"}])
+      (let [misses (:misses (ec/stats))]
+        (is (= "renamed" (:name (d/entity @conn e))))
+        (is (= (inc misses) (:misses (ec/stats))))))
+    (testing "temporal views read through"
+      (let [before (ec/stats)]
+        (:name (d/entity (d/history @conn) e))
+        (is (= (select-keys before [:hits :misses])
+               (select-keys (ec/stats) [:hits :misses])))))))
+
+(deftest budget-evicts
+  (let [db @(conn-with {:entity-cache-bytes 2000})]
+    (doseq [e (people db)]
+      (d/touch (d/entity db e)))
+    (is (pos? (:evictions (ec/stats))))
+    (is (<= (:bytes (ec/stats)) 2000))))
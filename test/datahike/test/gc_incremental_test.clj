@@ -0,0 +1,106 @@
+(ns datahike.test.gc-incremental-test
+  "Incremental, resumable collection (`gc-storage!` with `:incremental?`).
+
+   Covers:
+   - `mark-new` skips what was already marked
+   - An incremental collection sweeps what a full one does, and cleans up its
+     checkpoints
+   - An interrupted collection leaves its checkpoint, sweeps nothing, and is
+     resumed by the next
+   - A throttled sweep deletes the same objects
+   - A sweep stops between batches once `:stop-ch` closes"
+  (:require [clojure.core.async :as a]
+            [clojure.test :refer [deftest is testing]]
+            [datahike.api :as d]
+            [datahike.gc :as gc]
+            [datahike.index.interface :refer [-mark]]
+            [datahike.index.persistent-set :as ps]
+            [konserve.core :as k]
+            [superv.async :refer [<?? S]])
+  (:import [java.util Date]))
+
+(defn- config []
+  (let [id (random-uuid)]
+    {:store {:backend :file
+             :path (str (System/getProperty "java.io.tmpdir") "/dh-gc-incremental-" id)
+             :id id}
+     :schema-flexibility :read
+     :keep-history? true}))
+
+(defn- with-history
+  "Calls `(f conn)` on a database of a few hundred commits."
+  [f]
+  (let [cfg (config)]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)]
+      (try
+        (dotimes [i 20]
+          (d/transact conn (vec (for [j (range 50)] {:age (+ (* i 50) j)}))))
+        (f conn)
+        (finally (d/release conn)
+                 (d/delete-database cfg))))))
+
+(defn- ages [db]
+  (d/q '[:find (count ?e) . :where [?e :age _]] db))
+
+(defn- store-keys [conn]
+  (set (map :key (k/keys (:store @conn) {:sync? true}))))
+
+(deftest mark-new-skips-seen
+  (with-history
+    (fn [conn]
+      (let [eavt (:eavt @conn)
+            all (-mark eavt)]
+        (is (= all (ps/mark-new eavt #{})))
+        (is (empty? (ps/mark-new eavt all)))))))
+
+(deftest incremental-sweeps-like-full
+  (with-history
+    (fn [conn]
+      (let [swept (<?? S (gc/gc-storage! @conn (Date.) {:incremental? true :chunk-size 16}))]
+        (is (seq swept))
+        (is (not (k/exists? (:store @conn) :datahike/gc-mark {:sync? true})))
+        (is (= 1000 (ages @conn)))
+        (testing "a full collection finds nothing left"
+          (is (empty? (<?? S (gc/gc-storage! @conn (Date.))))))))))
+
+(deftest interrupted-then-resumed
+  (with-history
+    (fn [conn]
+      (let [before (store-keys conn)
+            stop (doto (a/chan) a/close!)]
+        (is (= #{} (<?? S (gc/gc-storage! @conn (Date.) {:incremental? true
+                                                          :chunk-size 16
+                                                          :stop-ch stop}))))
+        (is (k/exists? (:store @conn) :datahike/gc-mark {:sync? true}))
+        (is (every? (store-keys conn) before) "nothing was swept")
+        (d/transact conn [{:age -1}])
+        (let [swept (<?? S (gc/gc-storage! @conn (Date.) {:incremental? true :chunk-size 16}))]
+          (is (seq swept))
+          (is (not (k/exists? (:store @conn) :datahike/gc-mark {:sync? true})))
+          (is (= 1001 (ages @conn))))))))
+
+(deftest throttled-sweep
+  (with-history
+    (fn [conn]
+      (let [swept (<?? S (gc/gc-storage! @conn (Date.) {:incremental? true
+                                                         :sweep-rate 100000
+                                                         :mark-rate 1000000}))]
+        (is (seq swept))
+        (is (= 1000 (ages @conn)))
+        (is (empty? (<?? S (gc/gc-storage! @conn (Date.)))))))))
+
+(deftest sweep-stops-between-batches
+  (with-history
+    (fn [conn]
+      (let [store (:store @conn)
+            live (store-keys conn)
+            _ (k/assoc store :junk-1 1 {:sync? true})
+            _ (k/assoc store :junk-2 2 {:sync? true})
+            _ (Thread/sleep 5)
+            stop (doto (a/chan) a/close!)
+            ;; one object a batch at 10 a second
+            [deleted stopped?] (<?? S (#'gc/throttled-sweep! store live (Date.) 10 stop))]
+        (is stopped?)
+        (is (= 1 (count deleted)) "the batch in progress is finished, the next is not begun")
+        (is (= 1 (count (filter #(k/exists? store % {:sync? true}) [:junk-1 :junk-2]))))))))
@@ -0,0 +1,121 @@
+(ns datahike.test.lease-test
+  "Read leases (`datahike.lease`).
+
+   Covers:
+   - A lease is written to the store and removed by unpin
+   - Offline GC keeps a leased commit past `remove-before`, and takes it once
+     unpinned
+   - Online GC with `:leases?` keeps freed nodes a lease still holds
+   - A db value that was never committed cannot be pinned
+   - A failed renewal leaves the heartbeat running"
+  (:require [clojure.core.async :as async]
+            [clojure.test :refer [deftest is testing]]
+            [datahike.api :as d]
+            [datahike.lease :as lease]
+            [konserve.core :as k]
+            [superv.async :refer [<?? S]])
+  (:import [java.util Date]))
+
+(defn- config [extra]
+  (merge {:store {:backend :memory :id (random-uuid)}
+          :schema-flexibility :read
+          :keep-history? false}
+         extra))
+
+(defn- cid [db]
+  (get-in db [:meta :datahike/commit-id]))
+
+(defn- ages [db]
+  (d/q '[:find (count ?e) . :where [?e :age _]] db))
+
+(deftest pin-and-unpin
+  (let [cfg (config {})]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)
+          _ (d/transact conn [{:age 1}])
+          db @conn
+          l (lease/pin! db {:ttl-ms 60000})
+          store (:store db)]
+      (testing "the store has it"
+        (is (= (cid db) (get-in (lease/live store {:sync? true}) [(:id l) :commit-id])))
+        (is (some? (lease/floor store {:sync? true}))))
+      (lease/unpin! l)
+      (testing "and no longer"
+        (is (empty? (lease/live store {:sync? true})))
+        (is (nil? (lease/floor store {:sync? true}))))
+      (d/release conn))
+    (d/delete-database cfg)))
+
+(deftest offline-gc-keeps-leased-commits
+  (let [cfg (config {})]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)
+          _ (d/transact conn [{:age 1}])
+          pinned @conn
+          _ (d/transact conn [{:age 2}])
+          unpinned @conn
+          _ (d/transact conn [{:age 3}])
+          store (:store @conn)
+          l (lease/pin! pinned)]
+      (<?? S (d/gc-storage conn (Date.)))
+      (testing "the leased commit survives, its neighbour does not"
+        (is (k/exists? store (cid pinned) {:sync? true}))
+        (is (not (k/exists? store (cid unpinned) {:sync? true})))
+        (is (= 1 (ages pinned))))
+      (lease/unpin! l)
+      (<?? S (d/gc-storage conn (Date.)))
+      (is (not (k/exists? store (cid pinned) {:sync? true})))
+      (d/release conn))
+    (d/delete-database cfg)))
+
+(deftest online-gc-honours-leases
+  (let [cfg (config {:online-gc {:enabled? true :grace-period-ms 0 :leases? true}})]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)
+          _ (d/transact conn (vec (for [i (range 2000)] {:age i})))
+          pinned @conn
+          l (lease/pin! pinned)
+          freed #(count @(-> @conn :store :storage :freed-addresses))]
+      (d/transact conn (vec (for [i (range 50)] [:db/add (inc i) :age (- i)])))
+      (let [held (freed)]
+        (is (pos? held) "nodes the pinned snapshot names are kept")
+        (is (= 2000 (ages pinned)))
+        (lease/unpin! l)
+        (d/transact conn [{:age -1}])
+        (is (< (freed) held) "and released with the lease"))
+      (d/release conn))
+    (d/delete-database cfg)))
+
+(deftest only-committed-values
+  (let [cfg (config {})]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)]
+      (is (thrown-with-msg? Exception #"Only a committed db value"
+                            (lease/pin! (update @conn :meta dissoc :datahike/commit-id))))
+      (d/release conn))
+    (d/delete-database cfg)))
+
+(deftest failed-renewal-keeps-the-heartbeat
+  (let [cfg (config {})]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)
+          _ (d/transact conn [{:age 1}])
+          l (lease/pin! @conn {:ttl-ms 300})
+          store (:store @conn)
+          expires #(get-in (k/get store lease/lease-key nil {:sync? true})
+                          [(:id l) :expires-at])
+          attempts (atom 0)]
+      (with-redefs [k/update (fn [& _]
+                               (swap! attempts inc)
+                               (doto (async/chan 1)
+                                 (async/put! (ex-info "store down" {}))))]
+        (Thread/sleep 450))
+      (testing "every heartbeat tried, and failed"
+        (is (<= 2 @attempts)))
+      (let [before (expires)]
+        (Thread/sleep 250)
+        (testing "renewals go through again once the store is back"
+          (is (< before (expires)))))
+      (lease/unpin! l)
+      (d/release conn))
+    (d/delete-database cfg)))
@@ -0,0 +1,122 @@
+(ns datahike.test.listener-dispatch-test
+  "Listeners with a bounded queue of their own (`datahike.listener`).
+
+   Covers:
+   - Reports arrive in commit order under concurrent transactions
+   - A slow listener does not hold up `transact` with `:drop`
+   - `:drop` and `:coalesce` counters, and coalesced reports
+   - `:backpressure` holds `transact` until the queue has room
+   - A throwing callback is counted and delivery goes on
+   - Bad options are rejected"
+  (:require [clojure.test :refer [deftest is testing]]
+            [datahike.api :as d]
+            [datahike.listener :as listener]))
+
+(defn- config []
+  {:store {:backend :memory :id (random-uuid)}
+   :schema-flexibility :read
+   :keep-history? false})
+
+(defn- with-conn [f]
+  (let [cfg (config)]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)]
+      (try (f conn)
+           (finally (d/release conn)
+                    (d/delete-database cfg))))))
+
+(defn- await-idle [conn key]
+  (loop [n 0]
+    (let [{:keys [queue-depth] :as s} (listener/stats conn key)]
+      (if (or (zero? queue-depth) (> n 500))
+        s
+        (do (Thread/sleep 10) (recur (inc n)))))))
+
+(defn- tx-of [report]
+  (:max-tx (:db-after report)))
+
+(deftest commit-order
+  (with-conn
+    (fn [conn]
+      (let [seen (atom [])]
+        (d/listen conn :order #(swap! seen conj (tx-of %)) {:queue-size 16})
+        (->> (range 200)
+             (mapv (fn [i] (future (d/transact conn [{:n i}]))))
+             (run! deref))
+        (await-idle conn :order)
+        (Thread/sleep 50)
+        (is (= 200 (count @seen)))
+        (is (apply < @seen))))))
+
+(deftest slow-listener-drops
+  (with-conn
+    (fn [conn]
+      (let [gate (promise)]
+        (d/listen conn :slow (fn [_] @gate) {:queue-size 2 :overflow :drop})
+        (testing "transact does not wait for the listener"
+          (dotimes [i 10]
+            (d/transact conn [{:n i}]))
+          (let [{:keys [dropped queue-depth lag-ms]} (listener/stats conn :slow)]
+            (is (<= queue-depth 2))
+            (is (pos? dropped))
+            (is (<= 0 lag-ms))))
+        (deliver gate true)
+        (let [{:keys [enqueued dropped]} (await-idle conn :slow)]
+          (is (= 10 (+ enqueued dropped)))
+          (Thread/sleep 50)
+          (is (= enqueued (:delivered (listener/stats conn :slow)))))))))
+
+(deftest coalesces
+  (with-conn
+    (fn [conn]
+      (let [gate (promise)
+            reports (atom [])]
+        (d/listen conn :c (fn [r] @gate (swap! reports conj r)) {:queue-size 2 :overflow :coalesce})
+        (dotimes [i 10]
+          (d/transact conn [{:n i}]))
+        (is (pos? (:coalesced (listener/stats conn :c))))
+        (deliver gate true)
+        (await-idle conn :c)
+        (Thread/sleep 50)
+        (testing "every datom arrives, the last report ends at the last db"
+          (is (= (set (range 10))
+                 (set (keep #(when (= :n (:a %)) (:v %)) (mapcat :tx-data @reports)))))
+          (is (= (tx-of (last @reports)) (:max-tx @conn)))
+          (is (= 10 (reduce + (map #(:datahike/coalesced % 1) @reports)))))))))
+
+(deftest backpressure-holds-transact
+  (with-conn
+    (fn [conn]
+      (let [gate (promise)]
+        (d/listen conn :b (fn [_] @gate) {:queue-size 1 :overflow :backpressure})
+        ;; taken by the consumer, which then waits on the gate
+        (d/transact conn [{:n 0}])
+        (Thread/sleep 50)
+        (let [f (future (d/transact conn [{:n 1}]))]
+          (Thread/sleep 200)
+          (is (not (realized? f)) "held while the queue is full")
+          (deliver gate true)
+          (is (some? (deref f 5000 nil))))))))
+
+(deftest failing-callback
+  (with-conn
+    (fn [conn]
+      (let [seen (atom 0)]
+        (d/listen conn :f (fn [_] (when (= 1 (swap! seen inc)) (throw (ex-info "boom" {})))) {})
+        (d/transact conn [{:n 0}])
+        (d/transact conn [{:n 1}])
+        (await-idle conn :f)
+        (Thread/sleep 50)
+        (is (= 2 @seen))
+        (is (= 1 (:failed (listener/stats conn :f))))))))
+
+(deftest bad-options
+  (with-conn
+    (fn [conn]
+      (is (thrown-with-msg? Exception #":overflow must be"
+                            (d/listen conn :x identity {:overflow :spill})))
+      (is (thrown-with-msg? Exception #":overflow must be"
+                            (d/listen conn :x identity {:overflow :block}))
+          "the soft bound is not called blocking")
+      (is (thrown-with-msg? Exception #":queue-size must be"
+                            (d/listen conn :x identity {:queue-size 0}))))))
@@ -0,0 +1,94 @@
+(ns datahike.test.lookup-batch-test
+  "Batched lookup-ref resolution (`dbu/resolve-lookup-refs`).
+
+   Covers:
+   - Every ref resolves to what `entid` answers: hits, misses, values between
+     and past the attribute's run, several attributes, dense and sparse sets
+   - Malformed refs are left for `entid` to raise on
+   - On an as-of db each ref gets its own descent, no seek to the index end
+   - A query binding a collection of lookup refs and a pull-many over lookup
+     refs answer as they do one ref at a time"
+  (:require [clojure.test :refer [deftest is testing use-fixtures]]
+            [datahike.api :as d]
+            [datahike.db.interface :as dbi]
+            [datahike.db.utils :as dbu]))
+
+(def ^:dynamic ^:private *conn* nil)
+
+(def ^:private cfg
+  {:store {:backend :memory :id #uuid "cafe0034-0000-0000-0000-000000000034"}
+   :schema-flexibility :write
+   :keep-history? false})
+
+(def ^:private schema
+  [{:db/ident :email :db/valueType :db.type/string :db/cardinality :db.cardinality/one
+    :db/unique :db.unique/identity}
+   {:db/ident :code :db/valueType :db.type/long :db/cardinality :db.cardinality/one
+    :db/unique :db.unique/value}
+   {:db/ident :name :db/valueType :db.type/string :db/cardinality :db.cardinality/one}])
+
+(defn- email [i] (format "u%05d@example.com" i))
+
+(defn- with-db-fixture [f]
+  (try (d/delete-database cfg) (catch Exception _ nil))
+  (d/create-database cfg)
+  (let [conn (d/connect cfg)]
+    (d/transact conn schema)
+    ;; every third email and every tenth code exist
+    (d/transact conn (vec (for [i (range 0 3000 3)]
+                            (cond-> {:email (email i) :name (str "n" i)}
+                              (zero? (mod i 10)) (assoc :code i)))))
+    (binding [*conn* conn]
+      (try (f)
+           (finally
+             (d/release conn)
+             (d/delete-database cfg))))))
+
+(use-fixtures :each with-db-fixture)
+
+(deftest batch-matches-entid
+  (let [db @*conn*]
+    (doseq [[k refs] {:dense (shuffle (for [i (range 500)] [:email (email i)]))
+                      :sparse (for [i (range 0 3000 97)] [:email (email i)])
+                      :past-the-end (for [i (range 2990 3100)] [:email (email i)])
+                      :mixed (shuffle (concat (for [i (range 200)] [:email (email i)])
+                                              (for [i (range 0 600 5)] [:code i])))}]
+      (testing (name k)
+        (is (= (into {} (map (fn [r] [r (dbu/entid db r)])) refs)
+               (dbu/resolve-lookup-refs db refs)))))
+    (testing "malformed refs are left out"
+      (is (= {} (dbu/resolve-lookup-refs db [[:name "n3"] [:email nil] [:email "a" "b"]]))))))
+
+(deftest as-of-resolves-without-seeks
+  (let [cfg {:store {:backend :memory :id (random-uuid)}
+             :schema-flexibility :write
+             :keep-history? true}]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)]
+      (d/transact conn schema)
+      (d/transact conn (vec (for [i (range 0 600 3)] {:email (email i)})))
+      (let [t (java.util.Date.)]
+        (Thread/sleep 10)
+        (d/transact conn (vec (for [i (range 1 600 3)] {:email (email i)})))
+        (let [db (d/as-of @conn t)
+              refs (shuffle (for [i (range 600)] [:email (email i)]))
+              seeks (atom 0)
+              seek dbi/seek-datoms]
+          (is (= (into {} (map (fn [r] [r (dbu/entid db r)])) refs)
+                 (with-redefs [dbi/seek-datoms (fn [& args] (swap! seeks inc) (apply seek args))]
+                   (dbu/resolve-lookup-refs db refs))))
+          (is (= 200 (count (filter some? (vals (dbu/resolve-lookup-refs db refs))))))
+          (is (zero? @seeks))))
+      (d/release conn))
+    (d/delete-database cfg)))
+
+(deftest query-and-pull-agree
+  (let [db @*conn*
+        refs (vec (for [i (range 300)] [:email (email i)]))
+        found (filterv #(dbu/entid db %) refs)]
+    (testing "collection binding of lookup refs"
+      (is (= (set (for [r found] [(:name (d/pull db [:name] r))]))
+             (d/q '[:find ?n :in $ [?e ...] :where [?e :name ?n]] db found))))
+    (testing "pull-many"
+      (is (= (mapv #(d/pull db [:name] %) found)
+             (d/pull-many db [:name] found))))))
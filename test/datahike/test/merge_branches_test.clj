@@ -0,0 +1,137 @@
+(ns datahike.test.merge-branches-test
+  "Three-way branch merges (`datahike.versioning/merge-branches!`).
+
+   Covers:
+   - The merge base of two branches
+   - Non-conflicting changes on both sides merge, new entities get fresh ids
+   - Entities both sides created under the same id are both kept
+   - Cardinality-one conflicts raise, or go to the resolver
+   - Cardinality-many changes from both sides are kept
+   - Unique values held by another entity conflict
+   - An entity retracted on one side and changed on the other conflicts"
+  (:require [clojure.test :refer [deftest is testing]]
+            [datahike.api :as d]
+            [datahike.versioning :as v]))
+
+(def ^:private schema
+  [{:db/ident :name :db/valueType :db.type/string :db/cardinality :db.cardinality/one
+    :db/unique :db.unique/identity}
+   {:db/ident :email :db/valueType :db.type/string :db/cardinality :db.cardinality/one
+    :db/unique :db.unique/value}
+   {:db/ident :age :db/valueType :db.type/long :db/cardinality :db.cardinality/one}
+   {:db/ident :tag :db/valueType :db.type/keyword :db/cardinality :db.cardinality/many}
+   {:db/ident :friend :db/valueType :db.type/ref :db/cardinality :db.cardinality/many}])
+
+(defn- with-branches
+  "Calls `(f conn feature)` with `:db` and `:feature` branched from a common
+   commit holding two people."
+  [f]
+  (let [cfg {:store {:backend :memory :id (random-uuid)}
+             :schema-flexibility :write
+             :keep-history? true
+             :initial-tx schema}]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)]
+      (d/transact conn [{:name "ada" :age 36 :tag [:math]}
+                        {:name "bob" :age 40}])
+      (v/branch! conn :db :feature)
+      (let [feature (d/connect (assoc cfg :branch :feature))]
+        (try (f conn feature)
+             (finally (d/release feature)
+                      (d/release conn)
+                      (d/delete-database cfg)))))))
+
+(defn- age [db n]
+  (:age (d/entity db [:name n])))
+
+(deftest finds-the-merge-base
+  (with-branches
+    (fn [conn feature]
+      (let [base (v/commit-id @conn)]
+        (d/transact conn [{:name "ada" :age 37}])
+        (d/transact feature [{:name "bob" :age 41}])
+        (d/transact feature [{:name "bob" :age 42}])
+        (is (= base (v/merge-base (:store @conn) (v/commit-id @conn) (v/commit-id @feature))))))))
+
+(deftest merges-independent-changes
+  (with-branches
+    (fn [conn feature]
+      (d/transact conn [{:name "ada" :age 37} {:name "cy" :age 20}])
+      (d/transact feature [{:name "bob" :age 41}
+                           {:name "dee" :age 30 :friend [[:name "bob"]]}])
+      (let [{:keys [db-after merge]} (v/merge-branches! conn :feature)]
+        (is (empty? (:conflicts merge)))
+        (is (= 37 (age db-after "ada")))
+        (is (= 41 (age db-after "bob")))
+        (is (= 20 (age db-after "cy")))
+        (testing "a new entity of theirs does not take an id ours used"
+          (is (= 30 (age db-after "dee")))
+          (is (not= (:db/id (d/entity db-after [:name "cy"]))
+                    (:db/id (d/entity db-after [:name "dee"]))))
+          (is (= #{"bob"} (set (map :name (:friend (d/entity db-after [:name "dee"])))))))
+        (is (= 2 (count (v/parent-commit-ids db-after))))))))
+
+(deftest both-sides-create-entities
+  (with-branches
+    (fn [conn feature]
+      ;; both take the same next entity id
+      (d/transact conn [{:name "eve" :age 50}])
+      (d/transact feature [{:name "fay" :age 50}])
+      (is (= (:db/id (d/entity @conn [:name "eve"]))
+             (:db/id (d/entity @feature [:name "fay"]))))
+      (let [{:keys [db-after merge]} (v/merge-branches! conn :feature)]
+        (is (empty? (:conflicts merge)))
+        (is (= 50 (age db-after "eve")))
+        (is (= 50 (age db-after "fay")))
+        (is (not= (:db/id (d/entity db-after [:name "eve"]))
+                  (:db/id (d/entity db-after [:name "fay"]))))))))
+
+(deftest cardinality-one-conflicts
+  (with-branches
+    (fn [conn feature]
+      (d/transact conn [{:name "ada" :age 37}])
+      (d/transact feature [{:name "ada" :age 38}])
+      (testing "without a resolver"
+        (is (thrown-with-msg? Exception #"Merge conflicts"
+                              (v/merge-branches! conn :feature))))
+      (testing "keep ours"
+        (let [{:keys [db-after merge]} (v/merge-branches! conn :feature {:resolve v/keep-ours})]
+          (is (= 37 (age db-after "ada")))
+          (is (= [{:type :cardinality-one :a :age :base 36 :ours 37 :theirs 38}]
+                 (map #(select-keys % [:type :a :base :ours :theirs]) (:conflicts merge)))))))))
+
+(deftest take-theirs-resolves
+  (with-branches
+    (fn [conn feature]
+      (d/transact conn [{:name "ada" :age 37}])
+      (d/transact feature [{:name "ada" :age 38}])
+      (is (= 38 (age (:db-after (v/merge-branches! conn :feature {:resolve v/take-theirs})) "ada"))))))
+
+(deftest cardinality-many-keeps-both
+  (with-branches
+    (fn [conn feature]
+      (d/transact conn [[:db/add [:name "ada"] :tag :logic]])
+      (d/transact feature [[:db/add [:name "ada"] :tag :engines]
+                           [:db/retract [:name "ada"] :tag :math]])
+      (let [{:keys [db-after]} (v/merge-branches! conn :feature)]
+        (is (= #{:logic :engines} (:tag (d/entity db-after [:name "ada"]))))))))
+
+(deftest unique-value-conflicts
+  (with-branches
+    (fn [conn feature]
+      (d/transact conn [{:name "ada" :email "a@x"}])
+      (d/transact feature [{:name "bob" :email "a@x"}])
+      (let [{:keys [merge db-after]} (v/merge-branches! conn :feature {:resolve v/take-theirs})]
+        (is (= [:unique] (map :type (:conflicts merge))))
+        (is (= "a@x" (:email (d/entity db-after [:name "bob"]))))
+        (is (nil? (:email (d/entity db-after [:name "ada"]))))))))
+
+(deftest retracted-entity-conflicts
+  (with-branches
+    (fn [conn feature]
+      (d/transact conn [[:db/retractEntity [:name "bob"]]])
+      (d/transact feature [{:name "bob" :age 41}])
+      (let [{:keys [merge db-after]} (v/merge-branches! conn :feature {:resolve v/keep-ours})]
+        (is (= [{:type :retracted-entity :retracted-by :ours}]
+               (map #(select-keys % [:type :retracted-by]) (:conflicts merge))))
+        (is (nil? (d/entity db-after [:name "bob"])))))))
@@ -177,6 +177,22 @@
                 (str "as-of " t " differs")))))
       (teardown src) (teardown tgt))))
 
+(deftest parallel-and-sequential-builds-agree
+  (testing "the families built side by side produce the trees the sequential
+            loop does — the flushes interleave, the trees must not"
+    (doseq [history? [true false]]
+      (let [src (build-adversarial-db! (fresh history?))
+            path (tmp-path (str "par-" history?))
+            _ (m/export-db @src path {:history? history?})
+            seq-tgt (fresh history?)
+            _ (m/import-db seq-tgt path {:build-indexes? true :build-parallelism 1})
+            par-tgt (fresh history?)
+            _ (m/import-db par-tgt path {:build-indexes? true :build-parallelism 3})
+            diffs (compare-records @seq-tgt @par-tgt)]
+        (is (empty? diffs)
+            (str "fields differ: " (pr-str (keys diffs)) " -> " (pr-str diffs)))
+        (teardown src) (teardown seq-tgt) (teardown par-tgt)))))
+
 (deftest preserve-keeps-the-source-ids-and-holds-no-id-map
   (testing "`:eids :preserve` — the default for this path — is what makes a big
             restore fit in a bounded heap.
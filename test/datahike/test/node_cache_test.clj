@@ -0,0 +1,79 @@
+(ns datahike.test.node-cache-test
+  "The process-wide byte-weighted node cache (`:node-cache-bytes`).
+
+   Covers:
+   - Resident bytes stay within the budget, whatever the entry sizes
+   - A scan of once-read entries does not displace a frequently read set
+   - Counters are kept per store id; views of one store never share keys
+   - A database on the shared cache answers as it does on the LRU"
+  (:require [clojure.core.cache :as cache]
+            [clojure.test :refer [deftest is testing use-fixtures]]
+            [datahike.api :as d]
+            [datahike.impl.node-cache :as nc]))
+
+(use-fixtures :each (fn [f] (nc/clear!) (f) (nc/clear!)))
+
+(defn- blob [^long n] (apply str (repeat n "x")))
+
+(deftest stays-within-budget
+  (let [v (nc/view :a 100000)]
+    (doseq [i (range 2000)]
+      (cache/miss v i (blob (+ 10 (mod (* i 37) 900)))))
+    (let [{:keys [bytes capacity evictions]} (nc/stats)]
+      (is (= 100000 capacity))
+      (is (<= bytes capacity))
+      (is (pos? evictions)))))
+
+(deftest scan-resistant
+  (let [v (nc/view :a 200000)
+        hot (range 50)]
+    (doseq [k hot] (cache/miss v [:hot k] (blob 1000)))
+    (dotimes [_ 10]
+      (doseq [k hot] (cache/lookup v [:hot k])))
+    ;; ten times the budget, each entry read once
+    (doseq [i (range 1000)]
+      (cache/miss v [:scan i] (blob 1000)))
+    (is (<= 45 (count (filter #(cache/has? v [:hot %]) hot))))))
+
+(deftest per-store-accounting
+  (let [a (nc/view :a 100000)
+        a' (nc/view :a 100000)
+        b (nc/view :b 100000)]
+    (cache/miss a 1 "one")
+    (cache/miss b 1 "uno")
+    (is (= "one" (cache/lookup a 1)))
+    (is (= "uno" (cache/lookup b 1)))
+    (is (nil? (cache/lookup a' 1)) "another opening of :a has its own keys")
+    (cache/evict a 1)
+    (is (nil? (cache/lookup a 1)))
+    (let [{:keys [stores]} (nc/stats)]
+      (is (= {:hits 1 :misses 2 :entries 0}
+             (select-keys (get stores :a) [:hits :misses :entries])))
+      (is (= {:hits 1 :misses 0 :entries 1}
+             (select-keys (get stores :b) [:hits :misses :entries]))))))
+
+(deftest database-on-shared-cache
+  (let [answers (fn [extra]
+                  (let [cfg (merge {:store {:backend :memory :id (random-uuid)}
+                                    :schema-flexibility :read
+                                    :keep-history? false
+                                    :index-config {:branching-factor 16}}
+                                   extra)]
+                    (d/create-database cfg)
+                    (let [conn (d/connect cfg)]
+                      (d/transact conn (vec (for [i (range 500)] {:n i :s (str "s" i)})))
+                      (d/release conn))
+                    (let [conn (d/connect cfg)]
+                      (try
+                        [(d/q '[:find (count ?e) (sum ?n) :where [?e :n ?n]] @conn)
+                         (d/q '[:find ?e :where [?e :s "s42"]] @conn)
+                         (get-in cfg [:store :id])]
+                        (finally
+                          (d/release conn)
+                          (d/delete-database cfg))))))
+        [q1 q2] (answers {})
+        [s1 s2 id] (answers {:node-cache-bytes 10000000})]
+    (is (= q1 s1))
+    (is (= q2 s2))
+    (testing "the store's reads went through the shared cache"
+      (is (pos? (get-in (nc/stats) [:stores id :misses]))))))
@@ -0,0 +1,146 @@
+(ns datahike.test.node-summary-test
+  "Leaf summaries beside level-1 index branches (`:node-summaries?`).
+
+   Covers:
+   - Lookups answer the same with and without summaries: present and absent
+     values, lookup refs, upserts, and values whose hash is not summarized
+   - An absent point lookup on a freshly connected db skips leaf reads
+   - Summaries survive a reconnect and a full GC
+   - Only AVET branches are summarized, within the size cap
+   - Only AVET leaves are noted when restored"
+  (:require [clojure.test :refer [deftest is testing use-fixtures]]
+            [datahike.api :as d]
+            [datahike.gc :as gc]
+            [datahike.index.persistent-set :as pset]
+            [datahike.index.persistent-set.summary :as summary]
+            [konserve.core :as k]
+            [superv.async :refer [<?? S]]))
+
+(def ^:private schema
+  [{:db/ident :email :db/valueType :db.type/string :db/cardinality :db.cardinality/one
+    :db/unique :db.unique/identity}
+   {:db/ident :code :db/valueType :db.type/long :db/cardinality :db.cardinality/one
+    :db/unique :db.unique/value}
+   {:db/ident :weight :db/valueType :db.type/double :db/cardinality :db.cardinality/one
+    :db/index true}])
+
+(defn- email [i] (format "u%05d@example.com" i))
+
+(defn- config [summaries?]
+  (cond-> {:store {:backend :memory :id (random-uuid)}
+           :schema-flexibility :write
+           :keep-history? false
+           :index-config {:branching-factor 16}}
+    summaries? (assoc :node-summaries? true)))
+
+(defn- populate!
+  "Even emails and codes, in a few transactions so level-1 branches are
+   rewritten over leaves stored earlier."
+  [cfg]
+  (d/create-database cfg)
+  (let [conn (d/connect cfg)]
+    (d/transact conn schema)
+    (doseq [batch (partition-all 500 (range 0 4000 2))]
+      (d/transact conn (vec (for [i batch]
+                              {:email (email i) :code i :weight (/ i 2.0)}))))
+    (d/release conn)))
+
+(use-fixtures :each (fn [f] (summary/clear!) (f)))
+
+(defn- answers [db]
+  {:emails (mapv #(d/entid db [:email (email %)]) (range 0 400 3))
+   :codes (mapv #(d/entid db [:code %]) (range 3900 4100 7))
+   :weights (mapv #(count (d/datoms db :avet :weight (/ % 2.0))) (range 0 200 5))})
+
+(deftest same-answers
+  (let [plain (config false)
+        summarized (config true)]
+    (populate! plain)
+    (populate! summarized)
+    (let [a (d/connect plain)
+          b (d/connect summarized)]
+      (try
+        (is (= (answers @a) (answers @b)))
+        (testing "upserts"
+          (let [tx (fn [conn] (mapv (fn [i] {:email (email i) :code (+ 10000 i)}) (range 0 40 3)))]
+            (d/transact a (tx a))
+            (d/transact b (tx b))
+            (is (= (answers @a) (answers @b)))
+            (is (= (d/q '[:find (count ?e) :where [?e :email]] @a)
+                   (d/q '[:find (count ?e) :where [?e :email]] @b)))))
+        (finally
+          (d/release a)
+          (d/release b)
+          (d/delete-database plain)
+          (d/delete-database summarized))))))
+
+(defn- absent-lookup-restores
+  "Node restores on a fresh connection while resolving absent emails."
+  [cfg]
+  (let [conn (d/connect cfg)
+        n (atom 0)]
+    (try
+      (binding [pset/*restore-hook* #(swap! n inc)]
+        (is (every? nil? (mapv #(d/entid @conn [:email (email %)]) (range 1 4000 40)))))
+      @n
+      (finally (d/release conn)))))
+
+(deftest absent-lookups-skip-leaves
+  (let [plain (config false)
+        summarized (config true)]
+    (populate! plain)
+    (populate! summarized)
+    (try
+      (is (< (absent-lookup-restores summarized)
+             (absent-lookup-restores plain)))
+      (testing "after a full GC"
+        (let [conn (d/connect summarized)]
+          (<?? S (gc/gc-storage! @conn (java.util.Date.)))
+          (d/release conn))
+        (summary/clear!)
+        (is (< (absent-lookup-restores summarized)
+               (absent-lookup-restores plain))))
+      (finally
+        (d/delete-database plain)
+        (d/delete-database summarized)))))
+
+(deftest avet-only-and-capped
+  (let [cfg (config true)]
+    (populate! cfg)
+    (let [conn (d/connect cfg)
+          store (:store @conn)
+          summarized (->> (k/keys store {:sync? true})
+                          (map :key)
+                          (filter summary/summary-key?))]
+      (try
+        (is (seq summarized))
+        (is (every? (pset/mark (:avet @conn)) (map second summarized))
+            "every summary sits beside an AVET branch")
+        (is (every? (fn [key]
+                      (<= (reduce + (map count (:filters (k/get store key nil {:sync? true}))))
+                          4096))
+                    summarized))
+        (finally
+          (d/release conn)
+          (d/delete-database cfg))))))
+
+(deftest only-avet-restores-are-noted
+  (let [cfg (config true)]
+    (populate! cfg)
+    (let [conn (d/connect cfg)
+          noted (atom 0)
+          note-leaf! summary/note-leaf!]
+      (try
+        (with-redefs [summary/note-leaf! (fn [address node]
+                                           (swap! noted inc)
+                                           (note-leaf! address node))]
+          (testing "EAVT and AEVT reads note nothing"
+            (is (pos? (count (d/datoms @conn :eavt))))
+            (is (pos? (count (d/datoms @conn :aevt :email))))
+            (is (zero? @noted)))
+          (testing "an AVET read notes the leaves it restores"
+            (is (pos? (count (d/datoms @conn :avet :email))))
+            (is (pos? @noted))))
+        (finally
+          (d/release conn)
+          (d/delete-database cfg))))))
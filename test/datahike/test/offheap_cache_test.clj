@@ -0,0 +1,71 @@
+(ns datahike.test.offheap-cache-test
+  "The off-heap second level under the shared node cache
+   (`:offheap-cache-bytes`).
+
+   Covers:
+   - Bytes read back are the bytes written; a recycled slab drops its entries
+   - Nodes the heap cache evicts are spilled, promoted back on a miss, and a
+     database answers as it does without the tier
+   - A value put in the heap cache, kept or rejected, replaces the spilled copy"
+  (:require [clojure.core.cache :as cache]
+            [clojure.test :refer [deftest is testing use-fixtures]]
+            [datahike.api :as d]
+            [datahike.impl.node-cache :as nc]
+            [datahike.impl.offheap-cache :as off]))
+
+(use-fixtures :each (fn [f] (nc/clear!) (off/clear!) (f) (nc/clear!) (off/clear!)))
+
+(deftest arena-round-trip
+  (off/ensure-capacity! 4096)
+  (let [bs (fn [i] (byte-array (repeat 1000 (byte i))))]
+    (doseq [i (range 3)] (off/put! i (bs i)))
+    (is (= (seq (bs 1)) (seq (off/get-bytes 1))))
+    (testing "the ring comes round: the oldest entries go"
+      (doseq [i (range 3 8)] (off/put! i (bs i)))
+      (is (nil? (off/get-bytes 0)))
+      (is (= (seq (bs 7)) (seq (off/get-bytes 7))))
+      (is (pos? (:drops (off/stats)))))
+    (testing "larger than the arena is not kept"
+      (off/put! :big (byte-array 5000))
+      (is (nil? (off/get-bytes :big))))))
+
+(deftest spilled-nodes-come-back
+  (let [answers (fn [extra]
+                  (let [cfg (merge {:store {:backend :memory :id (random-uuid)}
+                                    :schema-flexibility :read
+                                    :keep-history? false
+                                    :index-config {:branching-factor 16}}
+                                   extra)]
+                    (d/create-database cfg)
+                    (let [conn (d/connect cfg)]
+                      (d/transact conn (vec (for [i (range 2000)] {:n i :s (str "s" i)})))
+                      (d/release conn))
+                    (let [conn (d/connect cfg)]
+                      (try
+                        ;; twice: the second pass finds what the first spilled
+                        (vec (repeatedly 2 #(vector
+                                             (d/q '[:find (count ?e) (sum ?n) :where [?e :n ?n]] @conn)
+                                             (d/q '[:find ?e :where [?e :s "s42"]] @conn))))
+                        (finally
+                          (d/release conn)
+                          (d/delete-database cfg))))))
+        plain (answers {})
+        tiered (answers {:node-cache-bytes 50000 :offheap-cache-bytes 10000000})]
+    (is (= plain tiered))
+    (let [{:keys [spills promotions]} (off/stats)]
+      (is (pos? spills))
+      (is (pos? promotions)))))
+
+(deftest put-replaces-the-spilled-copy
+  (let [v (fn [x] (byte-array 50 (byte x)))
+        view (nc/view ::test 10000 {:bytes 1000000 :encode identity :decode identity})
+        put (fn [k x] (cache/miss view k x))]
+    ;; fill main, so that what leaves the window next loses admission
+    (doseq [i (range 200)] (put i (v 1)))
+    (put :a (v 2))
+    (put :b (v 3))
+    (doseq [i (range 200 210)] (put i (v 1)))
+    (is (= (seq (v 3)) (seq (cache/lookup view :b))) "spilled, and promoted back")
+    (testing "a value too large to keep still drops the old one"
+      (put :a (byte-array 5000))
+      (is (nil? (cache/lookup view :a))))))
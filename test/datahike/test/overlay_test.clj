@@ -0,0 +1,81 @@
+(ns datahike.test.overlay-test
+  "Delta overlay indices (`datahike.index.overlay`).
+
+   Covers:
+   - `d/with` over an overlay equals a plain `d/with`, datoms and queries
+   - Retractions and cardinality-one upserts of base datoms
+   - Materialization once a delta passes `*max-delta*`
+   - The optimistic recompute runs on overlay indices"
+  (:require [clojure.test :refer [deftest is testing]]
+            [datahike.api :as d]
+            [datahike.index.overlay :as overlay]
+            [datahike.optimistic]))
+
+(def ^:private schema
+  [{:db/ident :name :db/valueType :db.type/string :db/cardinality :db.cardinality/one
+    :db/unique :db.unique/identity}
+   {:db/ident :age :db/valueType :db.type/long :db/cardinality :db.cardinality/one
+    :db/index true}
+   {:db/ident :tag :db/valueType :db.type/keyword :db/cardinality :db.cardinality/many}])
+
+(defn- config []
+  {:store {:backend :memory :id (random-uuid)}
+   :schema-flexibility :write
+   :keep-history? true
+   :initial-tx schema})
+
+(defn- with-db [f]
+  (let [cfg (config)]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)]
+      (d/transact conn (for [i (range 100)]
+                         {:name (str "p" i) :age i :tag [:a (keyword (str "t" (mod i 3)))]}))
+      (try (f @conn)
+           (finally (d/release conn)
+                    (d/delete-database cfg))))))
+
+(def ^:private txs
+  [[{:name "new" :age 1000 :tag [:a :b]}]
+   [[:db/retract [:name "p3"] :age 3]
+    [:db/retractEntity [:name "p4"]]]
+   [{:name "p5" :age 55}
+    [:db/retract [:name "p6"] :tag :a]]
+   [{:name "p7" :tag [:z]}]])
+
+(defn- same-as-plain [db]
+  (let [plain (reduce #(:db-after (d/with %1 %2)) db txs)
+        over (reduce #(:db-after (d/with %1 %2)) (overlay/overlay db) txs)]
+    (doseq [index [:eavt :aevt :avet]]
+      (is (= (vec (d/datoms plain index)) (vec (d/datoms over index))) (str index)))
+    (is (= (d/q '[:find ?n ?a :where [?e :name ?n] [?e :age ?a]] plain)
+           (d/q '[:find ?n ?a :where [?e :name ?n] [?e :age ?a]] over)))
+    (is (= (d/q '[:find (count ?e) . :where [?e :tag :a]] plain)
+           (d/q '[:find (count ?e) . :where [?e :tag :a]] over)))
+    (is (= (d/pull plain '[*] [:name "p5"]) (d/pull over '[*] [:name "p5"])))
+    (is (= (vec (d/datoms (d/history plain) :eavt [:name "p4"]))
+           (vec (d/datoms (d/history over) :eavt [:name "p4"]))))
+    over))
+
+(deftest with-over-an-overlay
+  (with-db
+    (fn [db]
+      (let [over (same-as-plain db)]
+        (testing "the indices stayed overlays"
+          (is (every? #(overlay/overlay? (get over %)) [:eavt :aevt :avet])))
+        (testing "the base is untouched"
+          (is (= 100 (d/q '[:find (count ?e) . :where [?e :name _]] db)))
+          (is (= 3 (:age (d/entity db [:name "p3"])))))))))
+
+(deftest materializes-past-max-delta
+  (with-db
+    (fn [db]
+      (binding [overlay/*max-delta* 4]
+        (let [over (same-as-plain db)]
+          (is (not-any? #(overlay/overlay? (get over %)) [:eavt :aevt])))))))
+
+(deftest optimistic-recompute-uses-overlays
+  (with-db
+    (fn [db]
+      (let [{over :db} (#'datahike.optimistic/recompute db [{:ov-id 1 :tx-data (first txs)}])]
+        (is (overlay/overlay? (:eavt over)))
+        (is (= 1000 (:age (d/entity over [:name "new"]))))))))
@@ -0,0 +1,92 @@
+(ns datahike.test.prevalidate-test
+  "Schema-only transaction checks ahead of the writer (`:prevalidate?`).
+
+   Covers:
+   - `prevalidate` passes exactly the values that would pass when applied
+   - Concurrent transactions through a prevalidating writer all land
+   - Bad values still fail, with the usual error
+   - Values of an attribute installed after the writer started still work
+   - The writer applies the entity maps a worker exploded without exploding
+     them again"
+  (:require [clojure.test :refer [deftest is testing]]
+            [datahike.api :as d]
+            [datahike.db.transaction :as dbt]
+            [datahike.writer])
+  (:import [java.util.concurrent Future ForkJoinWorkerThread]))
+
+(def ^:private schema
+  [{:db/ident :name :db/valueType :db.type/string :db/cardinality :db.cardinality/one
+    :db/maxLength 5}
+   {:db/ident :n :db/valueType :db.type/long :db/cardinality :db.cardinality/one}
+   {:db/ident :friend :db/valueType :db.type/ref :db/cardinality :db.cardinality/one}])
+
+(defn- config [writer]
+  {:store {:backend :memory :id (random-uuid)}
+   :schema-flexibility :write
+   :keep-history? false
+   :initial-tx schema
+   :writer (merge {:backend :self} writer)})
+
+(deftest prevalidate-passes-valid-values-only
+  (let [cfg (config {})
+        _ (d/create-database cfg)
+        conn (d/connect cfg)
+        {:keys [values] :as pre} (dbt/prevalidate @conn [{:name "Ivan" :n 1 :friend {:name "Petr"}}
+                                                        {:name "much too long"}
+                                                        [:db/add 1 :n "not a long"]
+                                                        [:db/add 2 :unknown 1]])]
+    (is (identical? (:schema @conn) (:schema pre)))
+    (is (contains? values [:name "Ivan" String]))
+    (is (contains? values [:name "Petr" String]) "nested maps are walked")
+    (is (contains? values [:n 1 Long]))
+    (is (not (contains? values [:name "much too long" String])))
+    (is (not (contains? values [:n "not a long" String])))
+    (is (not-any? #(= :friend (first %)) values) "refs are left to the apply")
+    (d/release conn)
+    (d/delete-database cfg)))
+
+(deftest prevalidating-writer
+  (let [cfg (config {:prevalidate? true})
+        _ (d/create-database cfg)
+        conn (d/connect cfg)]
+    (testing "concurrent transactions all land"
+      (->> (range 200)
+           (mapv (fn [i] (future (d/transact conn [{:name (str "p" (mod i 1000)) :n i}]))))
+           (run! deref))
+      (is (= 200 (d/q '[:find (count ?e) . :where [?e :n _]] @conn))))
+    (testing "bad values still fail"
+      (is (thrown-with-msg? Exception #"exceeds max length"
+                            (d/transact conn [{:name "much too long"}])))
+      (is (thrown-with-msg? Exception #"Bad entity value"
+                            (d/transact conn [{:n "not a long"}]))))
+    (testing "a schema change between transactions"
+      (d/transact conn [{:db/ident :tag :db/valueType :db.type/keyword :db/cardinality :db.cardinality/one}])
+      (d/transact conn [{:tag :new}])
+      (is (= #{[:new]} (d/q '[:find ?t :where [_ :tag ?t]] @conn))))
+    (d/release conn)
+    (d/delete-database cfg)))
+
+(deftest writer-uses-prevalidated-explosions
+  (let [cfg (config {:prevalidate? true})
+        _ (d/create-database cfg)
+        conn (d/connect cfg)
+        explode @#'dbt/explode
+        on-writer (atom 0)]
+    (testing "a worker explodes with a stand-in id"
+      (let [{:keys [exploded]} (dbt/prevalidate @conn [{:name "Ivan" :n 1}])]
+        (is (= 1 (count exploded)))))
+    ;; wait for every worker, so that no explosion is left to the writer
+    (with-redefs [datahike.writer/prevalidated (fn [f] (.get ^Future f))
+                  dbt/explode (fn [db entity]
+                                (when-not (instance? ForkJoinWorkerThread (Thread/currentThread))
+                                  (swap! on-writer inc))
+                                (explode db entity))]
+      (let [{:keys [tempids]} (d/transact conn [{:db/id "ivan" :name "Ivan" :n 1}
+                                                {:db/id "petr" :name "Petr" :n 2}])]
+        (is (zero? @on-writer))
+        (is (= #{["Ivan" 1] ["Petr" 2]}
+               (d/q '[:find ?name ?n :where [?e :name ?name] [?e :n ?n]] @conn)))
+        (is (= 1 (d/q '[:find ?n . :in $ ?e :where [?e :n ?n]] @conn (get tempids "ivan")))
+            "the stand-in id is replaced by the resolved one")))
+    (d/release conn)
+    (d/delete-database cfg)))
@@ -0,0 +1,151 @@
+(ns datahike.test.pull-batch-test
+  "Prefetched pull-many (`datahike.pull-api/prefetch`).
+
+   Covers:
+   - A pull-many above the prefetch threshold answers exactly what one pull
+     per eid answers, in the caller's eid order, for nested subpatterns,
+     reverse refs, components, wildcard, :limit/:default/:as and :db/id
+   - Dense and sparse eid sets (one range pass vs one descent per entity)
+   - Only the pulled attributes are prefetched, and reverse refs only for
+     dense eids
+   - On as-of and history dbs, no range pass: their seeks run to the end of
+     the index
+   - Parallel chunked pull-many answers the same, in the same order
+   - Parsed selectors are cached"
+  (:require [clojure.test :refer [deftest is testing use-fixtures]]
+            [datahike.api :as d]
+            [datahike.db.interface :as dbi]
+            [datahike.pull-api :as p]))
+
+(def ^:dynamic ^:private *conn* nil)
+
+(def ^:private cfg
+  {:store {:backend :memory :id #uuid "cafe0031-0000-0000-0000-000000000031"}
+   :schema-flexibility :write
+   :keep-history? false})
+
+(def ^:private schema
+  [{:db/ident :name :db/valueType :db.type/string :db/cardinality :db.cardinality/one}
+   {:db/ident :tag :db/valueType :db.type/keyword :db/cardinality :db.cardinality/many}
+   {:db/ident :friend :db/valueType :db.type/ref :db/cardinality :db.cardinality/many}
+   {:db/ident :manager :db/valueType :db.type/ref :db/cardinality :db.cardinality/one}
+   {:db/ident :address :db/valueType :db.type/ref :db/cardinality :db.cardinality/one
+    :db/isComponent true}
+   {:db/ident :street :db/valueType :db.type/string :db/cardinality :db.cardinality/one}])
+
+(def ^:private n 300)
+
+(defn- with-db-fixture [f]
+  (try (d/delete-database cfg) (catch Exception _ nil))
+  (d/create-database cfg)
+  (let [conn (d/connect cfg)]
+    (d/transact conn schema)
+    (d/transact conn (vec (for [i (range n)]
+                            (cond-> {:db/id (str "p" i)
+                                     :name (str "p" i)
+                                     :tag [(keyword (str "t" (mod i 3))) :all]
+                                     :address {:street (str "street " i)}}
+                              (pos? i) (assoc :manager (str "p" (quot i 4)))
+                              (> i 2) (assoc :friend [(str "p" (dec i)) (str "p" (- i 3))])))))
+    (binding [*conn* conn]
+      (try (f)
+           (finally
+             (d/release conn)
+             (d/delete-database cfg))))))
+
+(use-fixtures :each with-db-fixture)
+
+(defn- people [db]
+  (sort (map first (d/q '[:find ?e :where [?e :name _]] db))))
+
+(defn- one-by-one
+  "What pull-many answers, pulled one eid at a time (never prefetched)."
+  [db selector eids]
+  (vec (keep #(d/pull db selector %) eids)))
+
+(def ^:private selectors
+  [[:name]
+   [:db/id :name [:tag :default :none]]
+   ['*]
+   [:name {:friend [:name {:manager [:name]}]}]
+   [:name {:_manager [:name]}]
+   [:name {:_friend [:db/id]} {:manager ['*]}]
+   [:name :address]
+   [{:address [:street]} [:tag :limit 1] [:friend :as :pals]]
+   [:name {:manager '...}]
+   [:name [:street :default "none"]]])
+
+(deftest prefetched-pull-many-agrees
+  (let [db @*conn*
+        es (vec (people db))
+        eid-sets {:dense (shuffle es)
+                  :sparse (vec (take-nth 7 es))
+                  :with-missing (conj (vec (take 50 es)) 1000000)}]
+    (doseq [[k eids] eid-sets
+            selector selectors]
+      (testing (str k " " selector)
+        (is (<= p/prefetch-threshold (count eids)))
+        (is (= (one-by-one db selector eids)
+               (d/pull-many db selector eids)))))))
+
+(deftest prefetch-reads-pulled-attributes-only
+  (let [db @*conn*
+        es (vec (people db))
+        prefetch #(#'p/prefetch db (p/parse-pattern %1) %2)]
+    (testing "forward attributes, dense and sparse"
+      (doseq [eids [es (vec (take-nth 7 es))]]
+        (let [{:keys [eavt]} (prefetch [:name] eids)]
+          (is (= (set eids) (set (keys eavt))))
+          (is (every? #(= #{:name} (set (keys %))) (vals eavt))))))
+    (testing "a wildcard level reads whole entities"
+      (is (every? #(contains? % :datahike.pull-api/all)
+                  (vals (:eavt (prefetch ['*] es))))))
+    (testing "reverse refs in one range pass for dense eids, none for sparse"
+      (is (= (count es) (count (:avet (prefetch [{:_manager [:name]}] es)))))
+      (is (empty? (:avet (prefetch [{:_manager [:name]}] (vec (take-nth 7 es)))))))))
+
+(deftest temporal-dbs-skip-the-range-pass
+  (let [cfg {:store {:backend :memory :id (random-uuid)}
+             :schema-flexibility :write
+             :keep-history? true}]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)]
+      (d/transact conn schema)
+      (d/transact conn (vec (for [i (range 100)]
+                              (cond-> {:db/id (str "p" i) :name (str "p" i)}
+                                (pos? i) (assoc :manager (str "p" (quot i 4)))))))
+      (let [t (java.util.Date.)]
+        (Thread/sleep 10)
+        (d/transact conn (vec (for [i (range 100 200)] {:name (str "p" i)})))
+        (let [es (vec (people @conn))
+              seeks (atom 0)
+              seek dbi/seek-datoms]
+          (doseq [[k db] {:as-of (d/as-of @conn t) :history (d/history @conn)}
+                  selector [[:name] ['*] [:name {:_manager [:name]}]]]
+            (testing (str k " " selector)
+              (reset! seeks 0)
+              (is (= (one-by-one db selector es)
+                     (with-redefs [dbi/seek-datoms (fn [& args] (swap! seeks inc) (apply seek args))]
+                       (d/pull-many db selector es))))
+              (is (zero? @seeks))))))
+      (d/release conn))
+    (d/delete-database cfg)))
+
+(deftest parallel-pull-many-agrees
+  (let [db @*conn*
+        eids (shuffle (vec (people db)))]
+    (doseq [selector selectors]
+      (testing (str selector)
+        (is (= (binding [p/*parallel-pull-threshold* nil]
+                 (d/pull-many db selector eids))
+               (with-redefs [p/parallel-pull-chunk 50]
+                 (binding [p/*parallel-pull-threshold* 100]
+                   (d/pull-many db selector eids)))))))
+    (testing "an unresolvable eid throws as it does serially"
+      (is (thrown? clojure.lang.ExceptionInfo
+                   (binding [p/*parallel-pull-threshold* 1]
+                     (d/pull-many db [:name] (conj (vec (take 10 eids)) [:name "nobody"]))))))))
+
+(deftest selectors-are-parsed-once
+  (let [selector [:name {:friend [:name]}]]
+    (is (identical? (p/parse-pattern selector) (p/parse-pattern selector)))))
@@ -0,0 +1,96 @@
+(ns datahike.test.query-batch-test
+  "Batch-at-a-time scan-only execution (`execute/*batch-execution*`).
+
+   Covers:
+   - Every kernel, scalar and (when the module is present) Vector API, keeps
+     exactly the rows the row-at-a-time filter keeps, in order
+   - Kernels compose over the selection vector
+   - Current, history, as-of and since scans answer the same batched as not,
+     across batch boundaries, with ground tx/added and max-results"
+  (:require [clojure.test :refer [deftest is testing use-fixtures]]
+            [datahike.api :as d]
+            [datahike.datom :as dd]
+            [datahike.query :as q]
+            [datahike.query.batch :as batch]
+            [datahike.query.execute :as execute]))
+
+(defn- survivors
+  "Row indices `select!` keeps for `kernels` over `datoms`."
+  [datoms kernels]
+  (let [b (batch/batch)
+        n (batch/fill! b (.iterator ^Iterable datoms))
+        m (batch/select! b kernels n)
+        sel (batch/selection b)]
+    (vec (for [j (range m)] (aget sel j)))))
+
+(defn- expected
+  [datoms pred]
+  (vec (keep-indexed (fn [i d] (when (pred d) i)) datoms)))
+
+(deftest kernels-match-row-filters
+  (let [datoms (vec (for [i (range 1000)]
+                      (dd/datom (mod i 13) :a i (+ 536870912 (mod i 7)) (odd? i))))
+        cases [[[[:e-eq 5]] #(== 5 (:e %))]
+               [[[:tx-eq 536870915]] #(== 536870915 (dd/datom-tx %))]
+               [[[:tx-le 536870914]] #(<= (dd/datom-tx %) 536870914)]
+               [[[:tx-gt 536870914]] #(> (dd/datom-tx %) 536870914)]
+               [[[:added 0]] dd/datom-added]
+               [[[:retracted 0]] (complement dd/datom-added)]
+               [[[:e-eq 3] [:retracted 0] [:tx-le 536870916]]
+                #(and (== 3 (:e %)) (not (dd/datom-added %))
+                      (<= (dd/datom-tx %) 536870916))]]]
+    (doseq [simd? (if (batch/simd-available?) [false true] [false])
+            [kernels pred] cases]
+      (binding [batch/*simd?* simd?]
+        (is (= (expected datoms pred) (survivors datoms kernels))
+            (str "kernels " kernels (when simd? " (simd)")))))))
+
+(def ^:dynamic ^:private *conn* nil)
+
+(def ^:private cfg
+  {:store {:backend :memory :id #uuid "cafe0029-0000-0000-0000-000000000029"}
+   :schema-flexibility :read
+   :keep-history? true})
+
+(defn- with-db-fixture [f]
+  (try (d/delete-database cfg) (catch Exception _ nil))
+  (d/create-database cfg)
+  (let [conn (d/connect cfg)]
+    ;; several batches' worth of datoms, half of them later retracted
+    (d/transact conn (vec (for [i (range 3000)] [:db/add (inc i) :x i])))
+    (d/transact conn (vec (for [i (range 0 3000 2)] [:db/retract (inc i) :x i])))
+    (d/transact conn (vec (for [i (range 0 3000 5)] [:db/add (inc i) :x (- i)])))
+    (binding [*conn* conn
+              q/*query-result-cache?* false]
+      (try (f)
+           (finally
+             (d/release conn)
+             (d/delete-database cfg))))))
+
+(use-fixtures :each with-db-fixture)
+
+(defn- both [f]
+  [(binding [execute/*batch-execution* false] (f))
+   (binding [execute/*batch-execution* true] (f))])
+
+(deftest batched-scans-agree
+  (let [db (d/db *conn*)
+        tx2 (-> (d/q '[:find (max ?tx) :where [_ :x _ ?tx false]] (d/history db)) ffirst)
+        dbs {:current db
+             :history (d/history db)
+             :as-of (d/as-of db tx2)
+             :since (d/since db tx2)}
+        queries [['[:find ?e ?v :where [?e :x ?v]]]
+                 ['[:find ?e ?v ?tx :where [?e :x ?v ?tx false]]]
+                 ['[:find ?e ?v :in $ ?tx :where [?e :x ?v ?tx true]] tx2]]]
+    (doseq [[k qdb] dbs
+            [query & args] queries]
+      (testing (str k " " query)
+        (let [[row batched] (both #(apply d/q query qdb args))]
+          (is (= row batched)))))
+    (testing "max-results stops a batched scan at the same count"
+      (let [query {:query '[:find ?e ?v :where [?e :x ?v]]
+                   :args [(d/history db)]
+                   :limit 10}
+            [row batched] (both #(d/q query))]
+        (is (= (count row) (count batched)))))))
@@ -371,7 +371,7 @@
                           [(count ?v) ?n]
                           [?e :person/name ?p]
                           [(clojure.string/upper-case ?p) ?u]]}
-          plan0 (#'q/get-or-create-plan db (:where query) #{} nil {})
+          plan0 (#'q/get-or-create-plan db (:where query) #{} nil {} (:where query))
           ;; Simulate a mid-execution replan right after the nested-q op
           ;; (index 0 in plan order: it is the only unconditionally-runnable op).
           replanned (plan/replan plan0 0 1 db)
@@ -0,0 +1,78 @@
+(ns datahike.test.query-join-spill-test
+  "The spilling hash join behind `:join-memory-budget`.
+
+   Covers:
+   - Below the budget the join is the in-memory one, unchanged
+   - Past it, `rel/hash-join` partitions both sides to disk and still answers
+     exactly what the in-memory join answers, including card-many fan-out
+   - A value the spill codec cannot carry falls back to the in-memory join
+   - A query's `:settings` reach the join: it spills, and answers the same"
+  (:require [clojure.test :refer [deftest is testing]]
+            [datahike.api :as d]
+            [datahike.migrate.fs :as fs]
+            [datahike.query :as q]
+            [datahike.query.relation :as rel]))
+
+(defn- rel-of [syms rows]
+  (rel/->Relation (zipmap syms (range)) (mapv to-array rows)))
+
+(defn- as-set
+  "Tuples as a set of {sym value} maps, so two joins with different column
+   orders compare by content."
+  [{:keys [attrs tuples]}]
+  (into #{} (map (fn [t] (into {} (map (fn [[s i]] [s (get t i)])) attrs))) tuples))
+
+(deftest in-memory-join-below-budget
+  (let [a (rel-of '[?e ?v] [[1 :x] [2 :y]])
+        b (rel-of '[?v ?w] [[:x "one"] [:y "two"]])]
+    (is (= (as-set (rel/hash-join a b))
+           (binding [rel/*join-memory-budget* (* 1024 1024)]
+             (as-set (rel/hash-join a b)))))))
+
+(deftest spilled-join-matches-in-memory
+  (let [a (rel-of '[?e ?v] (for [i (range 2000)] [i (mod i 97)]))
+        ;; two rows per key: the fan-out must survive partitioning
+        b (rel-of '[?v ?w] (for [k (range 97) j (range 2)] [k (str "w" k "-" j)]))
+        expected (as-set (rel/hash-join a b))
+        dir (fs/temp-dir! "dh-join-test-")]
+    (try
+      (binding [rel/*join-memory-budget* 1
+                rel/*spill-dir* dir]
+        (is (= expected (as-set (rel/hash-join a b))))
+        (is (empty? (fs/list-names dir)) "partition files are deleted"))
+      (finally (fs/delete! dir)))))
+
+(deftest unspillable-values-fall-back
+  (let [o (Object.)
+        a (rel-of '[?e ?v] [[1 o] [2 o]])
+        b (rel-of '[?v ?w] [[o :w]])]
+    (binding [rel/*join-memory-budget* 1]
+      (is (= 2 (count (:tuples (rel/hash-join a b))))))))
+
+(deftest query-settings-reach-the-join
+  (let [cfg {:store {:backend :memory :id #uuid "cafe0026-0000-0000-0000-000000000026"}
+             :schema-flexibility :read
+             :keep-history? false}
+        _ (d/create-database cfg)
+        conn (d/connect cfg)]
+    (try
+      (d/transact conn (vec (for [i (range 500)]
+                              {:db/id (inc i) :g (mod i 7) :n i})))
+      (binding [q/*query-result-cache?* false]
+        (let [query '[:find ?a ?b :where [?a :g ?x] [?b :g ?x] (or [?a :n 1] [?a :n 2])]
+              expected (d/q query @conn)]
+          (testing "a tiny budget spills and answers the same"
+            (let [spill-partitions! @#'rel/spill-partitions!
+                  partitions (atom 0)]
+              (with-redefs [rel/spill-partitions! (fn [& args]
+                                                    (let [files (apply spill-partitions! args)]
+                                                      (swap! partitions + (count files))
+                                                      files))]
+                (is (= expected
+                       (d/q {:query query
+                             :args [@conn]
+                             :settings {:join-memory-budget 1}}))))
+              (is (pos? @partitions) "the join spilled partitions")))))
+      (finally
+        (d/release conn)
+        (d/delete-database cfg)))))
@@ -0,0 +1,90 @@
+(ns datahike.test.query-limits-test
+  "Per-query resource limits, enforced through the :cancel hook.
+
+   Covers:
+   - No limits: results flow unchanged
+   - :max-tuples raises :datahike/resource-limit with partial stats
+   - :max-tuples stops a fused scan within a chunk, before it materializes
+   - :timeout-ms raises mid-scan
+   - The caller's own :cancel still cancels under a governor
+   - *default-limits* applies to queries that carry none"
+  (:require [clojure.test :refer [deftest is testing use-fixtures]]
+            [datahike.api :as d]
+            [datahike.query :as q]
+            [datahike.query.limits :as limits]))
+
+(def ^:dynamic ^:private *conn* nil)
+
+(def ^:private cfg
+  {:store {:backend :memory :id #uuid "cafe0027-0000-0000-0000-000000000027"}
+   :schema-flexibility :read
+   :keep-history? false})
+
+(defn- with-db-fixture [f]
+  (try (d/delete-database cfg) (catch Exception _ nil))
+  (d/create-database cfg)
+  (let [conn (d/connect cfg)]
+    (d/transact conn (into []
+                           (mapcat (fn [i]
+                                     [[:db/add (inc i) :x i]
+                                      [:db/add (inc i) :y (str "v" i)]]))
+                           (range 50000)))
+    (binding [*conn* conn
+              q/*query-result-cache?* false]
+      (try (f)
+           (finally
+             (d/release conn)
+             (d/delete-database cfg))))))
+
+(use-fixtures :each with-db-fixture)
+
+(def ^:private query '[:find ?e ?v :where [?e :x ?v]])
+
+(defn- limit-data [f]
+  (try (f) nil
+       (catch clojure.lang.ExceptionInfo e
+         (ex-data e))))
+
+(deftest no-limits-is-unchanged
+  (let [db (d/db *conn*)]
+    (is (= (d/q query db)
+           (d/q {:query query :args [db] :settings {:limits {}}})))))
+
+(deftest max-tuples-raises-with-stats
+  (let [data (limit-data #(d/q {:query query
+                                :args [(d/db *conn*)]
+                                :settings {:limits {:max-tuples 100}}}))]
+    (is (= :max-tuples (:datahike/resource-limit data)))
+    (is (= 100 (:limit data)))
+    (is (< 100 (:value data)))
+    (is (map? (:stats data)))
+    (is (contains? (:stats data) :elapsed-ms))))
+
+(deftest max-tuples-stops-a-fused-scan-early
+  (let [data (limit-data #(d/q {:query query
+                                :args [(d/db *conn*)]
+                                :settings {:limits {:max-tuples 100}}}))]
+    (is (= :max-tuples (:datahike/resource-limit data)))
+    (is (< (:value data) 1000)
+        "raised a chunk past the limit, not after all 50000 tuples")))
+
+(deftest timeout-raises-mid-scan
+  (let [data (limit-data #(d/q {:query '[:find ?e ?v ?w :where [?e :x ?v] [?e :y ?w]
+                                         [(str ?w ?v) ?s] [(not= ?s "")]]
+                                :args [(d/db *conn*)]
+                                :settings {:limits {:timeout-ms 0}}}))]
+    (is (= :timeout-ms (:datahike/resource-limit data)))))
+
+(deftest caller-cancel-still-cancels
+  (let [data (limit-data #(d/q {:query query
+                                :args [(d/db *conn*)]
+                                :cancel (volatile! true)
+                                :settings {:limits {:max-tuples 1000000}}}))]
+    (is (true? (:datahike/canceled data)))))
+
+(deftest default-limits-apply
+  (testing "a server-wide default bounds queries that carry no limits"
+    (binding [limits/*default-limits* {:max-tuples 10}]
+      (is (= :max-tuples
+             (:datahike/resource-limit
+              (limit-data #(d/q query (d/db *conn*)))))))))
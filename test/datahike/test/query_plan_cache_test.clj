@@ -0,0 +1,98 @@
+(ns datahike.test.query-plan-cache-test
+  "Plan cache sizing, warm-up and persistence.
+
+   Covers:
+   - d/warm-plans plans a query so its first call adds no cache entry
+   - Saved plan inputs round-trip through a file and a konserve store and
+     re-plan against the db they are loaded for
+   - Saved shapes are the clauses as written, without the :in values
+   - set-plan-cache-size! bounds the cache
+   - The stats fingerprint moves when the db outgrows its bucket"
+  (:require [clojure.test :refer [deftest is testing use-fixtures]]
+            [datahike.api :as d]
+            [datahike.query :as q]))
+
+(def ^:dynamic ^:private *conn* nil)
+
+(def ^:private cfg
+  {:store {:backend :memory :id #uuid "cafe0030-0000-0000-0000-000000000030"}
+   :schema-flexibility :read
+   :keep-history? false})
+
+(defn- with-db-fixture [f]
+  (try (d/delete-database cfg) (catch Exception _ nil))
+  (d/create-database cfg)
+  (let [conn (d/connect cfg)]
+    (d/transact conn (vec (for [i (range 200)]
+                            {:db/id (inc i) :name (str "n" i) :age (mod i 40)})))
+    (q/clear-plan-cache!)
+    (binding [*conn* conn
+              q/*disable-planner* false
+              q/*query-result-cache?* false]
+      (try (f)
+           (finally
+             (q/set-plan-cache-size! q/lru-cache-size)
+             (d/release conn)
+             (d/delete-database cfg))))))
+
+(use-fixtures :each with-db-fixture)
+
+(defn- cached-plans []
+  (count (.-key-value ^datahike.lru.LRU @@#'q/plan-cache)))
+
+(def ^:private by-age '[:find ?n :in $ ?a :where [?e :age ?a] [?e :name ?n]])
+(def ^:private all-names '[:find ?n :where [?e :name ?n]])
+
+(deftest warmed-query-finds-its-plan
+  (let [db @*conn*
+        r (d/warm-plans db [all-names {:query by-age :args [7]}])
+        n (cached-plans)]
+    (is (= {:planned 2 :skipped 0} r))
+    (d/q all-names db)
+    (d/q by-age db 7)
+    (is (= n (cached-plans)) "both calls hit the warmed plans")))
+
+(deftest unplannable-entries-are-skipped
+  (testing "an entry missing its inputs is counted, not thrown"
+    (is (= {:planned 1 :skipped 1}
+           (d/warm-plans @*conn* [all-names {:query by-age :args []}])))))
+
+(deftest saved-plans-round-trip
+  (let [db @*conn*]
+    (d/warm-plans db [all-names {:query by-age :args [7]}])
+    (testing "through a file"
+      (let [f (java.io.File/createTempFile "dh-plans-" ".edn")]
+        (try
+          (is (= 2 (q/save-plan-cache! (str f))))
+          (q/clear-plan-cache!)
+          (is (= {:planned 2 :skipped 0} (d/warm-plans db [] {:from (str f)})))
+          (d/q all-names db)
+          (is (= 2 (cached-plans)))
+          (finally (.delete f)))))
+    (testing "through the db's konserve store"
+      (is (= 2 (q/save-plan-cache! (:store db))))
+      (q/clear-plan-cache!)
+      (is (= {:planned 2 :skipped 0} (d/warm-plans db [] {:from (:store db)})))
+      (d/q all-names db)
+      (is (= 2 (cached-plans))))))
+
+(deftest saved-shapes-hold-no-values
+  (let [db @*conn*]
+    (d/q by-age db 7)
+    (d/q by-age db 8)
+    (is (= 2 (cached-plans)) "one plan per value")
+    (is (= ['[[?e :age ?a] [?e :name ?n]]]
+           (map first (q/plan-cache-entries)))
+        "one shape, as written")))
+
+(deftest cache-size-is-configurable
+  (q/set-plan-cache-size! 2)
+  (let [db @*conn*]
+    (doseq [a (range 5)]
+      (d/q (conj '[:find ?e :where] [(symbol "?e") :age a]) db))
+    (is (= 2 (cached-plans)))))
+
+(deftest fingerprint-tracks-growth
+  (let [before (#'q/stats-fingerprint @*conn*)]
+    (d/transact *conn* (vec (for [i (range 2000)] {:db/id (+ 1000 i) :name (str "m" i)})))
+    (is (< before (#'q/stats-fingerprint @*conn*)))))
@@ -0,0 +1,86 @@
+(ns datahike.test.read-ahead-test
+  "Read-ahead for range scans (`:read-ahead`).
+
+   Covers:
+   - Forward and reverse scans answer as they do without read-ahead
+   - A long scan on a cold connection fetches leaves ahead of the iterator
+   - Many overlapping scans on a store without multi-get all finish fetching"
+  (:require [clojure.test :refer [deftest is testing]]
+            [datahike.api :as d]
+            [datahike.index.persistent-set.read-ahead :as ra]
+            [konserve.utils]))
+
+(defn- config [extra]
+  (merge {:store {:backend :memory :id (random-uuid)}
+          :schema-flexibility :read
+          :keep-history? false
+          :store-cache-size 1000
+          :index-config {:branching-factor 16}}
+         extra))
+
+(defn- scans [cfg]
+  (d/create-database cfg)
+  (let [conn (d/connect cfg)]
+    (d/transact conn (vec (for [i (range 3000)] {:n i :s (str "s" i)})))
+    (d/release conn))
+  (let [conn (d/connect cfg)
+        db @conn
+        result {:eavt (mapv (juxt :e :a :v) (d/datoms db :eavt))
+                :avet (mapv (juxt :e :a :v) (d/index-range db {:attrid :n :start 100 :end 2500}))
+                :reverse (mapv (juxt :e :a :v) (take 1000 (d/rseek-datoms db :eavt)))
+                :reads (:reads @(:stats (-> db :store :storage)))}]
+    (d/release conn)
+    (d/delete-database cfg)
+    result))
+
+(deftest read-ahead-answers-alike
+  (let [plain (scans (config {}))
+        ahead (scans (config {:read-ahead {:after 32 :max-depth 4}}))]
+    (testing "forward scans"
+      (is (= (:eavt plain) (:eavt ahead)))
+      (is (= (:avet plain) (:avet ahead))))
+    (testing "reverse scans"
+      (is (= (:reverse plain) (:reverse ahead)))
+      (is (= 1000 (count (:reverse ahead)))))))
+
+(deftest read-ahead-fetches-leaves
+  (let [cfg (config {:read-ahead {:after 32 :max-depth 4}})]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)]
+      (d/transact conn (vec (for [i (range 3000)] {:n i})))
+      (d/release conn))
+    (let [conn (d/connect cfg)
+          db @conn
+          stats (:stats (-> db :store :storage))
+          before (:reads @stats)]
+      ;; consume a few leaves' worth, then let the prefetch land
+      (dorun (take 200 (d/datoms db :eavt)))
+      (Thread/sleep 200)
+      (let [after-prefetch (:reads @stats)]
+        (is (> after-prefetch before))
+        (testing "the rest of the scan finds prefetched leaves cached"
+          (is (= 3000 (count (d/datoms db :eavt))))))
+      (d/release conn))
+    (d/delete-database cfg)))
+
+(deftest overlapping-scans-without-multi-get
+  (let [cfg (config {:read-ahead {:after 8 :max-depth 16}})]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)]
+      (d/transact conn (vec (for [i (range 3000)] {:n i})))
+      (d/release conn))
+    (with-redefs [konserve.utils/multi-key-capable? (constantly false)]
+      (let [conn (d/connect cfg)
+            db @conn
+            in-flight @#'ra/in-flight
+            scans (doall (for [i (range 16)]
+                           (future (count (d/seek-datoms db :eavt (inc (* i 100)))))))]
+        (testing "every scan answers"
+          (is (every? pos? (map deref scans))))
+        (testing "every fetch they started lands"
+          (is (loop [n 0]
+                (cond (.isEmpty ^java.util.Set in-flight) true
+                      (> n 500) false
+                      :else (do (Thread/sleep 10) (recur (inc n)))))))
+        (d/release conn)))
+    (d/delete-database cfg)))
@@ -0,0 +1,138 @@
+(ns datahike.test.wal-test
+  "Write-ahead log with deferred index checkpoints (`:wal`).
+
+   Covers:
+   - A transaction is acknowledged from the log, before any index write
+   - Replaying the log over the stored head recovers it
+   - A checkpoint commits the indices, stamps the head and trims the log
+   - Release checkpoints, and a reconnect sees everything
+   - A purge, which a log record cannot replay, is checkpointed
+   - A schema change, whose index backfill a replay skips, is checkpointed
+   - A non-streaming writer is rejected"
+  (:require [clojure.test :refer [deftest is testing]]
+            [datahike.api :as d]
+            [datahike.wal :as wal]
+            [datahike.writing :as dsi]
+            [konserve.core :as k]))
+
+(defn- config [wal-opts]
+  {:store {:backend :memory :id (random-uuid)}
+   :schema-flexibility :read
+   :keep-history? false
+   :wal wal-opts})
+
+(defn- names [db]
+  (set (d/q '[:find [?n ...] :where [_ :name ?n]] db)))
+
+(defn- stored-head [conn]
+  (let [db @conn]
+    (k/get (:store db) (get-in db [:config :branch]) nil {:sync? true})))
+
+(defn- await-checkpoint [conn seq]
+  (loop [n 0]
+    (let [ckpt (get-in (stored-head conn) [:meta :datahike/wal-checkpoint] 0)]
+      (if (or (>= ckpt seq) (> n 200))
+        ckpt
+        (do (Thread/sleep 10) (recur (inc n)))))))
+
+(deftest acknowledged-from-the-log
+  (let [cfg (config {:checkpoint-txs 1000 :checkpoint-ms 600000})
+        _ (d/create-database cfg)
+        conn (d/connect cfg)
+        report (d/transact conn [{:name "Ivan"}])
+        seq (get-in report [:tx-meta :datahike/wal-seq])]
+    (testing "the report names its log record, not a commit"
+      (is (pos-int? seq))
+      (is (nil? (get-in report [:tx-meta :db/commitId]))))
+    (testing "the connection serves it at once"
+      (is (= #{"Ivan"} (names @conn))))
+    (testing "the stored head does not have it, the log does"
+      (let [head (stored-head conn)
+            store (:store @conn)]
+        (is (< (get-in head [:meta :datahike/wal-seq] 0) seq))
+        (is (k/exists? store (wal/wal-key :db seq) {:sync? true}))
+        (testing "and a replay over the head recovers it"
+          (let [replayed (wal/replay (dsi/stored->db (assoc head :config (:config @conn)) store)
+                                     store {:sync? true})]
+            (is (= #{"Ivan"} (names replayed)))
+            (is (= seq (wal/wal-seq replayed)))))))
+    (d/release conn)
+    (d/delete-database cfg)))
+
+(deftest checkpoint-commits-and-trims
+  (let [cfg (config {:checkpoint-txs 2 :checkpoint-ms 600000})
+        _ (d/create-database cfg)
+        conn (d/connect cfg)
+        _ (d/transact conn [{:name "Ivan"}])
+        seq (get-in (d/transact conn [{:name "Petr"}]) [:tx-meta :datahike/wal-seq])]
+    (is (= seq (await-checkpoint conn seq)))
+    (testing "the head is stamped and the covered records are gone"
+      (is (= seq (get-in (stored-head conn) [:meta :datahike/wal-seq])))
+      (is (empty? (wal/live-keys (:store @conn) :db {:sync? true}))))
+    (d/release conn)
+    (d/delete-database cfg)))
+
+(deftest release-checkpoints
+  (let [cfg (config {:checkpoint-txs 1000 :checkpoint-ms 600000})]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)]
+      (doseq [n ["Ivan" "Petr" "Oleg"]]
+        (d/transact conn [{:name n}]))
+      (d/release conn))
+    (let [conn (d/connect cfg)]
+      (is (= #{"Ivan" "Petr" "Oleg"} (names @conn)))
+      (is (= 3 (get-in (stored-head conn) [:meta :datahike/wal-checkpoint])))
+      (d/release conn))
+    (testing "connecting without :wal still sees everything"
+      (let [conn (d/connect (dissoc cfg :wal))]
+        (is (= #{"Ivan" "Petr" "Oleg"} (names @conn)))
+        (d/release conn)))
+    (d/delete-database cfg)))
+
+(deftest purges-are-checkpointed
+  (let [cfg (assoc (config {:checkpoint-txs 1000 :checkpoint-ms 600000}) :keep-history? true)
+        _ (d/create-database cfg)
+        conn (d/connect cfg)
+        _ (d/transact conn [{:name "Ivan"} {:name "Petr"}])
+        ivan (d/q '[:find ?e . :where [?e :name "Ivan"]] @conn)
+        report (d/transact conn [[:db.purge/entity ivan]])]
+    (testing "the purge is committed, not logged"
+      (is (some? (get-in report [:tx-meta :db/commitId])))
+      (is (nil? (get-in report [:tx-meta :datahike/wal-seq]))))
+    (testing "a replay over the stored head does not bring Ivan back"
+      (let [store (:store @conn)
+            replayed (wal/replay (dsi/stored->db (assoc (stored-head conn) :config (:config @conn)) store)
+                                 store {:sync? true})]
+        (is (= #{"Petr"} (names replayed)))
+        (is (empty? (d/q '[:find ?e :where [?e :name "Ivan"]] (d/history replayed))))))
+    (d/release conn)
+    (d/delete-database cfg)))
+
+(deftest schema-changes-are-checkpointed
+  (let [cfg (assoc (config {:checkpoint-txs 1000 :checkpoint-ms 600000})
+                   :schema-flexibility :write
+                   :allow-index-backfill? true)
+        _ (d/create-database cfg)
+        conn (d/connect cfg)
+        _ (d/transact conn [{:db/ident :name :db/valueType :db.type/string
+                             :db/cardinality :db.cardinality/one}])
+        _ (d/transact conn [{:name "Ivan"} {:name "Petr"}])
+        report (d/transact conn [[:db/add :name :db/index true]])
+        avet-names (fn [db] (set (map :v (d/datoms db :avet :name))))]
+    (testing "the index is committed, not logged"
+      (is (some? (get-in report [:tx-meta :db/commitId])))
+      (is (nil? (get-in report [:tx-meta :datahike/wal-seq]))))
+    (testing "a replay over the stored head has the backfilled AVET"
+      (let [store (:store @conn)
+            replayed (wal/replay (dsi/stored->db (assoc (stored-head conn) :config (:config @conn)) store)
+                                 store {:sync? true})]
+        (is (= #{"Ivan" "Petr"} (avet-names @conn) (avet-names replayed)))))
+    (d/release conn)
+    (d/delete-database cfg)))
+
+(deftest needs-a-streaming-writer
+  (let [cfg (assoc (config {}) :writer {:backend :self :streaming? false})]
+    (d/create-database cfg)
+    (is (thrown-with-msg? Exception #":wal needs a streaming"
+                          (d/connect cfg)))
+    (d/delete-database cfg)))
@@ -453,10 +453,12 @@
   (testing "no fourth entry point — an experimental surface is cheap to grow and breaking to shrink"
     ;; `warm-seek` was folded into `warm-datoms`' `:unbounded?`. Asserted so that
     ;; reintroducing it is a deliberate act rather than a drift.
-    (is (= #{'warm-index 'warm-datoms 'warm-db}
+    ;; `warm-plans` warms the query plan cache, not an index, and lives in
+    ;; datahike.query — it is the one other `warm` name on the API.
+    (is (= #{'warm-index 'warm-datoms 'warm-db 'warm-plans}
            (set (filter #(str/starts-with? (name %) "warm")
                         (keys (ns-publics 'datahike.api)))))
-        "the public surface: three, unbanged, no warm-seek")
+        "the public surface: three index warms plus warm-plans, unbanged, no warm-seek")
     (is (= #{'warm-index! 'warm-datoms! 'warm-db!}
            (set (filter #(str/starts-with? (name %) "warm")
                         (keys (ns-publics 'datahike.warm)))))
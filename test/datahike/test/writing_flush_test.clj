@@ -0,0 +1,123 @@
+(ns datahike.test.writing-flush-test
+  "The commit's index flush and its pending-write hand-off
+   (`datahike.writing`).
+
+   Covers:
+   - A history commit under `:crypto-hash?` flushes its six indices side by
+     side and reads back whole
+   - A failing flush rethrows its own error, after every flush has stopped,
+     and leaves the stored head where it was
+   - `write-pending-kvs!` batches on a multi-key store and writes key by key
+     on one without"
+  (:require [clojure.core.async :refer [<!!]]
+            [clojure.test :refer [deftest is testing]]
+            [datahike.api :as d]
+            [datahike.writing :as dw]
+            [konserve.core :as k]
+            [konserve.memory :refer [new-mem-store]]
+            [konserve.utils]))
+
+(defn- config [extra]
+  (merge {:store {:backend :memory :id (random-uuid)}
+          :schema-flexibility :read
+          :keep-history? false
+          :index :datahike.index/persistent-set}
+         extra))
+
+(defn- ns-of [db]
+  (set (d/q '[:find [?n ...] :where [_ :n ?n]] db)))
+
+(defn- messages [e]
+  (->> e (iterate ex-cause) (take-while some?) (keep ex-message)))
+
+(deftest history-commit-round-trip
+  (let [cfg (config {:keep-history? true :crypto-hash? true})]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)
+          threads (atom #{})
+          address @#'datahike.index.persistent-set/gen-address]
+      (with-redefs-fn {#'datahike.index.persistent-set/gen-address
+                       (fn [node crypto-hash?]
+                         (swap! threads conj (.getName (Thread/currentThread)))
+                         (address node crypto-hash?))}
+        (fn []
+          (d/transact conn (mapv (fn [i] {:n i}) (range 2000)))
+          (let [e (d/q '[:find ?e . :where [?e :n 0]] @conn)]
+            (d/transact conn [[:db/retract e :n 0]]))
+          (d/transact conn (mapv (fn [i] {:n i}) (range 2000 2100)))))
+      (testing "the indices were flushed off the writer thread, in parallel"
+        (is (< 1 (count @threads))))
+      (let [current (ns-of @conn)
+            as-of (ns-of (d/as-of @conn (:max-tx @conn)))
+            history (d/q '[:find (count ?n) . :where [_ :n ?n _ false]] (d/history @conn))]
+        (d/release conn)
+        (let [conn (d/connect cfg)]
+          (testing "current, as-of and history read back as committed"
+            (is (= 2099 (count current)))
+            (is (= current (ns-of @conn)))
+            (is (= as-of (ns-of (d/as-of @conn (:max-tx @conn)))))
+            (is (= history (d/q '[:find (count ?n) . :where [_ :n ?n _ false]] (d/history @conn))))
+            (is (= 1 history)))
+          (d/release conn))))
+    (d/delete-database cfg)))
+
+(deftest failing-flush
+  (let [cfg (config {:keep-history? true})]
+    (d/create-database cfg)
+    (let [conn (d/connect cfg)
+          _ (d/transact conn [{:n 1}])
+          store (:store @conn)
+          branch (get-in @conn [:config :branch])
+          head (k/get store branch nil {:sync? true})
+          calls (atom 0)
+          address @#'datahike.index.persistent-set/gen-address
+          error (with-redefs-fn {#'datahike.index.persistent-set/gen-address
+                                 (fn [node crypto-hash?]
+                                   (when (= 20 (swap! calls inc))
+                                     (throw (ex-info "synthetic flush failure" {})))
+                                   (Thread/sleep 1)
+                                   (address node crypto-hash?))}
+                  (fn []
+                    (try (d/transact conn (mapv (fn [i] {:n i}) (range 2 20000)))
+                         nil
+                         (catch Exception e e))))]
+      (testing "the flush's own error reaches the caller"
+        (is (some #{"synthetic flush failure"} (messages error))))
+      (testing "no flush is still running once it has"
+        (let [n @calls]
+          (Thread/sleep 200)
+          (is (= n @calls))))
+      (testing "the stored head is the last good commit"
+        (is (= (get-in head [:meta :datahike/commit-id])
+               (get-in (k/get store branch nil {:sync? true}) [:meta :datahike/commit-id]))))
+      (try (d/release conn) (catch Exception _))
+      (let [conn (d/connect cfg)]
+        (is (= #{1} (ns-of @conn)))
+        (d/release conn)))
+    (d/delete-database cfg)))
+
+(deftest write-pending-kvs
+  (let [kvs (mapv (fn [i] [(random-uuid) {:node i}]) (range 50))
+        run (fn [multi-key? sync?]
+              (let [store (new-mem-store (atom {}) {:sync? true})
+                    batches (atom 0)
+                    multi-assoc k/multi-assoc]
+                (with-redefs [konserve.utils/multi-key-capable? (constantly multi-key?)
+                              k/multi-assoc (fn [& args]
+                                              (swap! batches inc)
+                                              (apply multi-assoc args))]
+                  (let [res (dw/write-pending-kvs! store kvs sync?)]
+                    (when-not sync? (<!! res))))
+                {:batches @batches
+                 :stored (mapv (fn [[key _]] (k/get store key nil {:sync? true})) kvs)}))]
+    (doseq [sync? [true false]]
+      (testing (str "multi-key store, sync? " sync?)
+        (let [{:keys [batches stored]} (run true sync?)]
+          (is (= 1 batches))
+          (is (= (map second kvs) stored))))
+      (testing (str "single-key store, sync? " sync?)
+        (let [{:keys [batches stored]} (run false sync?)]
+          (is (zero? batches))
+          (is (= (map second kvs) stored)))))
+    (testing "nothing to write"
+      (is (nil? (dw/write-pending-kvs! (new-mem-store (atom {}) {:sync? true}) [] true))))))